@@ -1,10 +1,10 @@
 package com.intellisoft.findams.configuration;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.intellisoft.findams.constants.Constants;
-import com.intellisoft.findams.service.EventProgramService;
+import com.intellisoft.findams.service.FunSoftSyncService;
 import com.intellisoft.findams.service.HttpClientService;
-import com.intellisoft.findams.service.MicrobiologyService;
+import com.intellisoft.findams.service.UploadHistoryStore;
+import com.intellisoft.findams.service.WhonetDirectoryWatcher;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -20,11 +20,6 @@ import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.web.reactive.function.client.WebClient;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.time.ZoneId;
@@ -41,11 +36,13 @@ public class DynamicSchedulingConfig implements SchedulingConfigurer {
     private final ObjectMapper objectMapper;
 
     @Autowired
-    MicrobiologyService microbiologyService;
+    WhonetDirectoryWatcher whonetDirectoryWatcher;
     @Autowired
     HttpClientService httpClientService;
     @Autowired
-    EventProgramService eventProgramService;
+    FunSoftSyncService funSoftSyncService;
+    @Autowired
+    UploadHistoryStore uploadHistoryStore;
     @Value("${ams.last-event-created-url}")
     private String lastEventCreatedUrl;
     @Value("${ams.dhis.username}")
@@ -67,6 +64,9 @@ public class DynamicSchedulingConfig implements SchedulingConfigurer {
     
     @Value("${ams.funsoft.delayMonths}")
     private int delayMonths;
+
+    @Value("${ams.scheduler.pool-size:3}")
+    private int schedulerPoolSize;
     
 
     public DynamicSchedulingConfig(WebClient.Builder webClientBuilder, @Value("${ams.last-event-created-url}") String lastEventCreatedUrl, @Value("${ams.dhis.username}") String username, @Value("${ams.dhis.password}") String password, ObjectMapper objectMapper) {
@@ -79,7 +79,8 @@ public class DynamicSchedulingConfig implements SchedulingConfigurer {
     public TaskScheduler poolScheduler() {
         ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
         scheduler.setThreadNamePrefix("ThreadPoolTaskScheduler");
-        scheduler.setPoolSize(1);
+        // One thread each for the WHONET reconcile scan, the FunSoft sync and the reference data revalidation
+        scheduler.setPoolSize(Math.max(1, schedulerPoolSize));
         scheduler.initialize();
         return scheduler;
     }
@@ -89,27 +90,10 @@ public class DynamicSchedulingConfig implements SchedulingConfigurer {
         taskRegistrar.setScheduler(poolScheduler());
 
         taskRegistrar.addTriggerTask(() -> {
-            File directory = new File(Constants.WHONET_FILE_PATH);
-            File[] files = directory.listFiles();
-
-            if (files != null) {
-                for (File file : files) {
-                    if (file.isFile()) {
-                        try {
-                            String filePath = file.getAbsolutePath();
-                            String fileContent = new String(Files.readAllBytes(Paths.get(filePath)));
-                            String fileName = file.getName();
-
-                            microbiologyService.parseFile(filePath, fileContent, fileName);
-
-                        } catch (FileNotFoundException e) {
-                            log.error("File not found: " + file.getAbsolutePath());
-                        } catch (IOException e) {
-                            log.error("Error reading file: " + file.getAbsolutePath(), e);
-                        }
-                    }
-                }
-            }
+            // New files are picked up by the watcher as they land; this scan catches anything it missed
+            whonetDirectoryWatcher.reconcile();
+            // Upload summaries DHIS2 could not take at the time
+            uploadHistoryStore.publishPending();
         }, triggerContext -> {
             Date lastExecutionTime = triggerContext.lastActualExecutionTime();
             if (lastExecutionTime == null) {
@@ -148,13 +132,13 @@ public class DynamicSchedulingConfig implements SchedulingConfigurer {
                             String startDate = date.format(outputFormatter);
                             String endDate = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
 
-                            eventProgramService.fetchFromFunSoft(startDate, endDate);
+                            funSoftSyncService.sync(startDate, endDate).subscribe();
                         }
                     } else {
                         String startDate = defaultCronStartDate;
                         String endDate = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd"));
 
-                        eventProgramService.fetchFromFunSoft(startDate, endDate);
+                        funSoftSyncService.sync(startDate, endDate).subscribe();
                     }
                 } catch (Exception e) {
                     log.debug("Error processing JSON response: {}", e.getMessage());
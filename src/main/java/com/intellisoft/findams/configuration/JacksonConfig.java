@@ -0,0 +1,15 @@
+package com.intellisoft.findams.configuration;
+
+import com.fasterxml.jackson.databind.Module;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class JacksonConfig {
+
+    // Picked up by Spring Boot's ObjectMapper, and with it by WebClient and JsonPayloadWriter
+    @Bean
+    public Module trackerPayloadModule() {
+        return new TrackerPayloadModule();
+    }
+}
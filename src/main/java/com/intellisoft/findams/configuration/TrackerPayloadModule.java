@@ -0,0 +1,126 @@
+package com.intellisoft.findams.configuration;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.intellisoft.findams.dto.Attribute;
+import com.intellisoft.findams.dto.DataValue;
+import com.intellisoft.findams.dto.Enrollment;
+import com.intellisoft.findams.dto.Event;
+import com.intellisoft.findams.dto.TrackedEntityInstance;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Hand-written serializers for the tracker payload records, so writing a payload needs no reflection and
+ * skips the null fields DHIS2 does not expect.
+ */
+public class TrackerPayloadModule extends SimpleModule {
+
+    public TrackerPayloadModule() {
+        super("TrackerPayloadModule");
+        addSerializer(DataValue.class, new DataValueSerializer());
+        addSerializer(Attribute.class, new AttributeSerializer());
+        addSerializer(Event.class, new EventSerializer());
+        addSerializer(Enrollment.class, new EnrollmentSerializer());
+        addSerializer(TrackedEntityInstance.class, new TrackedEntityInstanceSerializer());
+    }
+
+    private static void writeString(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+    private static <T> void writeList(JsonGenerator generator, String name, List<T> values, JsonSerializer<T> serializer, SerializerProvider provider) throws IOException {
+        generator.writeArrayFieldStart(name);
+        for (T value : values) {
+            serializer.serialize(value, generator, provider);
+        }
+        generator.writeEndArray();
+    }
+
+    static class DataValueSerializer extends JsonSerializer<DataValue> {
+        @Override
+        public void serialize(DataValue dataValue, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("dataElement", dataValue.dataElement());
+            Object value = dataValue.value();
+            if (value instanceof String string) {
+                generator.writeStringField("value", string);
+            } else if (value instanceof Integer number) {
+                generator.writeNumberField("value", number);
+            } else if (value instanceof Double number) {
+                generator.writeNumberField("value", number);
+            } else {
+                provider.defaultSerializeField("value", value, generator);
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    static class AttributeSerializer extends JsonSerializer<Attribute> {
+        @Override
+        public void serialize(Attribute attribute, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            generator.writeStringField("attribute", attribute.attribute());
+            generator.writeStringField("value", attribute.value());
+            generator.writeEndObject();
+        }
+    }
+
+    static class EventSerializer extends JsonSerializer<Event> {
+        private final DataValueSerializer dataValueSerializer = new DataValueSerializer();
+
+        @Override
+        public void serialize(Event event, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            writeString(generator, "event", event.event());
+            writeString(generator, "program", event.program());
+            writeString(generator, "programStage", event.programStage());
+            writeString(generator, "orgUnit", event.orgUnit());
+            writeString(generator, "status", event.status());
+            writeString(generator, "eventDate", event.eventDate());
+            writeString(generator, "completedDate", event.completedDate());
+            writeString(generator, "occurredAt", event.occurredAt());
+            writeString(generator, "completedAt", event.completedAt());
+            writeList(generator, "dataValues", event.dataValues(), dataValueSerializer, provider);
+            generator.writeEndObject();
+        }
+    }
+
+    static class EnrollmentSerializer extends JsonSerializer<Enrollment> {
+        private final EventSerializer eventSerializer = new EventSerializer();
+
+        @Override
+        public void serialize(Enrollment enrollment, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            writeString(generator, "enrollment", enrollment.enrollment());
+            writeString(generator, "orgUnit", enrollment.orgUnit());
+            writeString(generator, "program", enrollment.program());
+            writeString(generator, "enrollmentDate", enrollment.enrollmentDate());
+            writeString(generator, "incidentDate", enrollment.incidentDate());
+            writeString(generator, "status", enrollment.status());
+            writeList(generator, "events", enrollment.events(), eventSerializer, provider);
+            generator.writeEndObject();
+        }
+    }
+
+    static class TrackedEntityInstanceSerializer extends JsonSerializer<TrackedEntityInstance> {
+        private final EnrollmentSerializer enrollmentSerializer = new EnrollmentSerializer();
+        private final AttributeSerializer attributeSerializer = new AttributeSerializer();
+
+        @Override
+        public void serialize(TrackedEntityInstance instance, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            generator.writeStartObject();
+            writeString(generator, "trackedEntityInstance", instance.trackedEntityInstance());
+            writeString(generator, "trackedEntityType", instance.trackedEntityType());
+            writeString(generator, "orgUnit", instance.orgUnit());
+            writeList(generator, "enrollments", instance.enrollments(), enrollmentSerializer, provider);
+            writeList(generator, "attributes", instance.attributes(), attributeSerializer, provider);
+            generator.writeEndObject();
+        }
+    }
+}
@@ -1,22 +1,24 @@
 package com.intellisoft.findams.controller;
 
 import com.intellisoft.findams.constants.Constants;
-import com.intellisoft.findams.service.MicrobiologyService;
+import com.intellisoft.findams.dto.IngestJob;
+import com.intellisoft.findams.service.UploadHistoryStore;
+import com.intellisoft.findams.service.WhonetIngestionExecutor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
-import reactor.core.Disposable;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.Map;
 import java.util.Objects;
 
 @Slf4j
@@ -24,26 +26,61 @@ import java.util.Objects;
 @CrossOrigin(origins = "*", allowedHeaders = "*")
 @RequestMapping(value = "/ams/file-import", produces = "application/json")
 public class FileImportController {
-    private final MicrobiologyService parsingService;
+    private static final int MAX_HISTORY_PAGE_SIZE = 500;
 
-    public FileImportController(MicrobiologyService parsingService) {
-        this.parsingService = parsingService;
+    private final WhonetIngestionExecutor whonetIngestionExecutor;
+    private final UploadHistoryStore uploadHistoryStore;
+
+    @Value("${ams.whonet.directory:" + Constants.WHONET_FILE_PATH + "}")
+    private String directory;
+
+    public FileImportController(WhonetIngestionExecutor whonetIngestionExecutor, UploadHistoryStore uploadHistoryStore) {
+        this.whonetIngestionExecutor = whonetIngestionExecutor;
+        this.uploadHistoryStore = uploadHistoryStore;
     }
 
+    /**
+     * Stores the upload in the WHONET directory and queues it for ingestion, answering 202 with the job to poll
+     * instead of waiting for the file to be parsed and posted. A file imported before is skipped unless
+     * {@code force} is set.
+     */
     @PostMapping("/parse-file")
-    public ResponseEntity<Disposable> parseFile(@RequestParam("fileContent") MultipartFile file) throws IOException {
+    public ResponseEntity<?> parseFile(@RequestParam("fileContent") MultipartFile file, @RequestParam(value = "force", defaultValue = "false") boolean force) throws IOException {
 
-        String fileName = StringUtils.cleanPath(Objects.requireNonNull(file.getOriginalFilename()));
-        String filePath = Constants.WHONET_FILE_PATH + File.separator + fileName;
+        String fileName = StringUtils.getFilename(StringUtils.cleanPath(Objects.requireNonNull(file.getOriginalFilename())));
+        if (!StringUtils.hasText(fileName)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "File name is missing"));
+        }
+        Path directoryPath = Paths.get(directory);
+        Path destinationPath = directoryPath.resolve(fileName);
+        if (whonetIngestionExecutor.isPending(destinationPath.toFile())) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", fileName + " is already being processed"));
+        }
 
-        // Save the uploaded file to the specified path
-        Path destinationPath = Paths.get(filePath);
-        Files.copy(file.getInputStream(), destinationPath, StandardCopyOption.REPLACE_EXISTING);
+        // Written once under a name the directory watcher ignores, then renamed so it never sees a partial file
+        Files.createDirectories(directoryPath);
+        Path partPath = directoryPath.resolve(fileName + ".part");
+        file.transferTo(partPath);
+        Files.move(partPath, destinationPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 
-        // Process the uploaded file
-        String fileContent = new String(file.getBytes(), StandardCharsets.UTF_8);
-        return ResponseEntity.status(HttpStatus.OK).body(parsingService.parseFile(filePath, fileContent, fileName));
+        IngestJob job = whonetIngestionExecutor.submit(destinationPath.toFile(), force);
+        return ResponseEntity.accepted().location(URI.create("/ams/file-import/jobs/" + job.getId())).body(job);
     }
 
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<IngestJob> getJob(@PathVariable String jobId) {
+        IngestJob job = whonetIngestionExecutor.getJob(jobId);
+        return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+    }
 
+    /**
+     * Summaries of past uploads, newest first, from the local mirror of the upload history.
+     */
+    @GetMapping("/history")
+    public ResponseEntity<?> getHistory(@RequestParam(value = "page", defaultValue = "0") int page, @RequestParam(value = "size", defaultValue = "20") int size) {
+        if (page < 0 || size < 1 || size > MAX_HISTORY_PAGE_SIZE) {
+            return ResponseEntity.badRequest().body(Map.of("error", "page must be 0 or more and size between 1 and " + MAX_HISTORY_PAGE_SIZE));
+        }
+        return ResponseEntity.ok(uploadHistoryStore.page(page, size));
+    }
 }
@@ -0,0 +1,63 @@
+package com.intellisoft.findams.controller;
+
+import com.intellisoft.findams.mapping.OptionSetMatcher;
+import com.intellisoft.findams.reference.ReferenceDataRegistry;
+import com.intellisoft.findams.service.MetadataCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Slf4j
+@RestController
+@CrossOrigin(origins = "*", allowedHeaders = "*")
+@RequestMapping(value = "/ams/metadata", produces = "application/json")
+public class MetadataController {
+    private final OptionSetMatcher optionSetMatcher;
+    private final ReferenceDataRegistry referenceDataRegistry;
+    private final MetadataCache metadataCache;
+
+    public MetadataController(OptionSetMatcher optionSetMatcher, ReferenceDataRegistry referenceDataRegistry, MetadataCache metadataCache) {
+        this.optionSetMatcher = optionSetMatcher;
+        this.referenceDataRegistry = referenceDataRegistry;
+        this.metadataCache = metadataCache;
+    }
+
+    @GetMapping("/option-set-matches")
+    public ResponseEntity<Map<String, Object>> getOptionSetMatches() {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("catalogueVersion", optionSetMatcher.getCatalogueVersion());
+        body.put("matches", optionSetMatcher.getMatches());
+        return ResponseEntity.status(HttpStatus.OK).body(body);
+    }
+
+    @GetMapping("/reference-data")
+    public ResponseEntity<Map<String, Object>> getReferenceData() {
+        return ResponseEntity.status(HttpStatus.OK).body(referenceDataRegistry.get().describe());
+    }
+
+    @PostMapping("/reference-data/reload")
+    public ResponseEntity<Map<String, Object>> reloadReferenceData() {
+        HttpStatus status = referenceDataRegistry.reload() ? HttpStatus.OK : HttpStatus.INTERNAL_SERVER_ERROR;
+        return ResponseEntity.status(status).body(referenceDataRegistry.get().describe());
+    }
+
+    @GetMapping("/cache")
+    public ResponseEntity<Map<String, Object>> getCache() {
+        return ResponseEntity.status(HttpStatus.OK).body(metadataCache.describe());
+    }
+
+    /**
+     * Drops the cached DHIS2 metadata named by {@code key}, or all of it, after the program metadata was edited.
+     */
+    @PostMapping("/cache/invalidate")
+    public ResponseEntity<Map<String, Object>> invalidateCache(@RequestParam(value = "key", required = false) String key) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("invalidated", metadataCache.invalidate(key));
+        body.put("entries", metadataCache.describe());
+        return ResponseEntity.status(HttpStatus.OK).body(body);
+    }
+}
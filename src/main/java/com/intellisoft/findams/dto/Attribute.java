@@ -0,0 +1,4 @@
+package com.intellisoft.findams.dto;
+
+public record Attribute(String attribute, String value) {
+}
@@ -0,0 +1,4 @@
+package com.intellisoft.findams.dto;
+
+public record DataValue(String dataElement, Object value) {
+}
@@ -0,0 +1,6 @@
+package com.intellisoft.findams.dto;
+
+import java.util.List;
+
+public record Enrollment(String enrollment, String orgUnit, String program, String enrollmentDate, String incidentDate, String status, List<Event> events) {
+}
@@ -0,0 +1,19 @@
+package com.intellisoft.findams.dto;
+
+import java.util.List;
+
+/**
+ * A program stage event. Events nested in an enrollment carry {@code eventDate}/{@code completedDate}, while
+ * events posted to the tracker API carry {@code occurredAt}/{@code completedAt}; unused dates are left null.
+ */
+public record Event(String event, String program, String programStage, String orgUnit, String status, String eventDate, String completedDate, String occurredAt, String completedAt, List<DataValue> dataValues) {
+    private static final String COMPLETED = "COMPLETED";
+
+    public static Event enrollmentEvent(String event, String program, String programStage, String orgUnit, String eventDate, String completedDate, List<DataValue> dataValues) {
+        return new Event(event, program, programStage, orgUnit, COMPLETED, eventDate, completedDate, null, null, dataValues);
+    }
+
+    public static Event trackerEvent(String program, String programStage, String orgUnit, String occurredAt, String completedAt, List<DataValue> dataValues) {
+        return new Event(null, program, programStage, orgUnit, COMPLETED, null, null, occurredAt, completedAt, dataValues);
+    }
+}
@@ -7,6 +7,7 @@ import lombok.Setter;
 import lombok.ToString;
 
 import java.util.List;
+import java.util.Map;
 
 @NoArgsConstructor
 @Getter
@@ -22,5 +23,12 @@ public class FileParseSummaryDto {
     String batchNo;
     String uploadDate;
     String fileName;
+    int chunks;
+    int failedChunks;
+    int rejectedRecords;
+    int datesNormalized;
+    int invalidDates;
+    int unchangedRows;
+    private Map<String, String> dateFormats;
     private List<String> conflictValues;
 }
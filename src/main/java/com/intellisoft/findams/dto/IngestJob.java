@@ -0,0 +1,186 @@
+package com.intellisoft.findams.dto;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of one WHONET file through ingestion, updated by the worker processing it and read by the status
+ * endpoint. Only the first {@value #MAX_CONFLICTS} conflicts are kept; {@code conflictCount} has the total.
+ */
+public class IngestJob {
+    static final int MAX_CONFLICTS = 100;
+
+    public enum Status {QUEUED, RUNNING, COMPLETED, SKIPPED, FAILED}
+
+    private final String id;
+    private final String fileName;
+    private final boolean forced;
+    private final Instant queuedAt = Instant.now();
+    private final AtomicInteger rowsParsed = new AtomicInteger();
+    private final AtomicInteger rowsUnchanged = new AtomicInteger();
+    private final AtomicInteger chunksPosted = new AtomicInteger();
+    private final AtomicInteger failedChunks = new AtomicInteger();
+    private final AtomicInteger imported = new AtomicInteger();
+    private final AtomicInteger ignored = new AtomicInteger();
+    private final AtomicInteger conflictCount = new AtomicInteger();
+    private final List<String> conflicts = new ArrayList<>();
+    private volatile Status status = Status.QUEUED;
+    private volatile Instant startedAt;
+    private volatile Instant finishedAt;
+    private volatile String error;
+    private volatile String sha256;
+    private volatile String duplicateOf;
+    private volatile FileParseSummaryDto summary;
+
+    public IngestJob(String id, String fileName) {
+        this(id, fileName, false);
+    }
+
+    /**
+     * @param forced whether the file is imported again even if its content or rows were imported before
+     */
+    public IngestJob(String id, String fileName, boolean forced) {
+        this.id = id;
+        this.fileName = fileName;
+        this.forced = forced;
+    }
+
+    public void started() {
+        startedAt = Instant.now();
+        status = Status.RUNNING;
+    }
+
+    public void rowParsed() {
+        rowsParsed.incrementAndGet();
+    }
+
+    public void rowUnchanged() {
+        rowsUnchanged.incrementAndGet();
+    }
+
+    public void chunkPosted(FileParseSummaryDto chunk) {
+        chunksPosted.incrementAndGet();
+        failedChunks.addAndGet(chunk.getFailedChunks());
+        imported.addAndGet(chunk.getImported() + chunk.getUpdated());
+        ignored.addAndGet(chunk.getIgnored());
+        if (chunk.getConflictValues() != null) {
+            conflictCount.addAndGet(chunk.getConflictValues().size());
+            synchronized (conflicts) {
+                for (String conflict : chunk.getConflictValues()) {
+                    if (conflicts.size() < MAX_CONFLICTS) {
+                        conflicts.add(conflict);
+                    }
+                }
+            }
+        }
+    }
+
+    public void completed(FileParseSummaryDto summary) {
+        this.summary = summary;
+        finishedAt = Instant.now();
+        status = Status.COMPLETED;
+    }
+
+    public void hashed(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    /**
+     * The file has the same content as one imported before, so it was not posted again.
+     */
+    public void skipped(String duplicateOf) {
+        this.duplicateOf = duplicateOf;
+        finishedAt = Instant.now();
+        status = Status.SKIPPED;
+    }
+
+    public void failed(String error) {
+        this.error = error;
+        finishedAt = Instant.now();
+        status = Status.FAILED;
+    }
+
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.SKIPPED || status == Status.FAILED;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public boolean isForced() {
+        return forced;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Instant getQueuedAt() {
+        return queuedAt;
+    }
+
+    public Instant getStartedAt() {
+        return startedAt;
+    }
+
+    public Instant getFinishedAt() {
+        return finishedAt;
+    }
+
+    public int getRowsParsed() {
+        return rowsParsed.get();
+    }
+
+    public int getRowsUnchanged() {
+        return rowsUnchanged.get();
+    }
+
+    public int getChunksPosted() {
+        return chunksPosted.get();
+    }
+
+    public int getFailedChunks() {
+        return failedChunks.get();
+    }
+
+    public int getImported() {
+        return imported.get();
+    }
+
+    public int getIgnored() {
+        return ignored.get();
+    }
+
+    public int getConflictCount() {
+        return conflictCount.get();
+    }
+
+    public List<String> getConflicts() {
+        synchronized (conflicts) {
+            return List.copyOf(conflicts);
+        }
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getDuplicateOf() {
+        return duplicateOf;
+    }
+
+    public FileParseSummaryDto getSummary() {
+        return summary;
+    }
+}
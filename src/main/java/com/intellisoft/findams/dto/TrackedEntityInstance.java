@@ -0,0 +1,9 @@
+package com.intellisoft.findams.dto;
+
+import java.util.List;
+
+/**
+ * A tracked entity instance with its enrollments. The uid is null when DHIS2 should assign one.
+ */
+public record TrackedEntityInstance(String trackedEntityInstance, String trackedEntityType, String orgUnit, List<Enrollment> enrollments, List<Attribute> attributes) {
+}
@@ -0,0 +1,135 @@
+package com.intellisoft.findams.mapping;
+
+import java.text.ParsePosition;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rewrites the dates of one WHONET column to {@code yyyy-MM-dd}. The formatters are immutable and shared by all
+ * instances; an instance only holds the per-column statistics, so create one per column and file. The first
+ * {@value #SAMPLE_SIZE} values are tried against every format to find the column's dominant one, which is tried
+ * first from then on. Values are parsed without throwing, and values no format accepts are returned unchanged.
+ */
+public class DateNormalizer {
+    static final int SAMPLE_SIZE = 32;
+
+    // Day first, as exported by the WHONET installations in the field
+    private static final List<DateFormat> FORMATS = List.of(
+            new DateFormat("dd/M/yyyy hh:mm:ss a", "d/M/uuuu h:mm:ss a"),
+            new DateFormat("dd/MM/yyyy HH:mm:ss", "d/M/uuuu H:mm:ss"),
+            new DateFormat("dd/MM/yyyy HH:mm", "d/M/uuuu H:mm"),
+            new DateFormat("dd/MM/yyyy", "d/M/uuuu"),
+            new DateFormat("yyyy-MM-dd", "uuuu-M-d"),
+            new DateFormat("yyyy-MM-dd HH:mm:ss", "uuuu-M-d H:mm:ss"),
+            new DateFormat("dd-MMM-yyyy", "d-MMM-uuuu"),
+            new DateFormat("dd.MM.yyyy", "d.M.uuuu"));
+
+    private final DateFormat[] order = FORMATS.toArray(new DateFormat[0]);
+    private final int[] hits = new int[FORMATS.size()];
+    private int sampled;
+    private int normalized;
+    private int invalid;
+
+    public String normalize(String value) {
+        if (value == null || value.isBlank()) {
+            return value;
+        }
+        String trimmed = value.trim();
+
+        if (sampled < SAMPLE_SIZE) {
+            return sample(value, trimmed);
+        }
+        for (DateFormat format : order) {
+            LocalDate date = format.parse(trimmed);
+            if (date != null) {
+                normalized++;
+                return date.toString();
+            }
+        }
+        invalid++;
+        return value;
+    }
+
+    // Tries every format while sampling, then puts the formats in order of how often they matched
+    private String sample(String value, String trimmed) {
+        sampled++;
+        LocalDate first = null;
+        for (int i = 0; i < FORMATS.size(); i++) {
+            LocalDate date = FORMATS.get(i).parse(trimmed);
+            if (date != null) {
+                hits[i]++;
+                if (first == null) {
+                    first = date;
+                }
+            }
+        }
+        if (sampled == SAMPLE_SIZE) {
+            Integer[] ranked = new Integer[FORMATS.size()];
+            Arrays.setAll(ranked, i -> i);
+            Arrays.sort(ranked, Comparator.comparingInt(i -> -hits[i]));
+            for (int i = 0; i < ranked.length; i++) {
+                order[i] = FORMATS.get(ranked[i]);
+            }
+        }
+        if (first == null) {
+            invalid++;
+            return value;
+        }
+        normalized++;
+        return first.toString();
+    }
+
+    /**
+     * The pattern most sampled values matched, or null if none of the sampled values could be parsed.
+     */
+    public String getDominantPattern() {
+        int best = -1;
+        for (int i = 0; i < hits.length; i++) {
+            if (hits[i] > 0 && (best < 0 || hits[i] > hits[best])) {
+                best = i;
+            }
+        }
+        return best >= 0 ? FORMATS.get(best).pattern : null;
+    }
+
+    public int getNormalizedCount() {
+        return normalized;
+    }
+
+    public int getInvalidCount() {
+        return invalid;
+    }
+
+    private static final class DateFormat {
+        private final String pattern;
+        private final DateTimeFormatter formatter;
+
+        private DateFormat(String pattern, String parsePattern) {
+            this.pattern = pattern;
+            this.formatter = new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern(parsePattern).toFormatter(Locale.ENGLISH);
+        }
+
+        // parseUnresolved reports a mismatch through the ParsePosition instead of an exception
+        private LocalDate parse(String value) {
+            ParsePosition position = new ParsePosition(0);
+            TemporalAccessor parsed = formatter.parseUnresolved(value, position);
+            if (parsed == null || position.getErrorIndex() >= 0 || position.getIndex() != value.length()) {
+                return null;
+            }
+            long year = parsed.getLong(ChronoField.YEAR);
+            long month = parsed.getLong(ChronoField.MONTH_OF_YEAR);
+            long day = parsed.getLong(ChronoField.DAY_OF_MONTH);
+            if (year < 1 || year > 9999 || month < 1 || month > 12 || day < 1 || day > LocalDate.of((int) year, (int) month, 1).lengthOfMonth()) {
+                return null;
+            }
+            return LocalDate.of((int) year, (int) month, (int) day);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.intellisoft.findams.mapping;
+
+/**
+ * Converts option names (or aliases) to option codes, falling back to the configured default value.
+ */
+public class OptionSetConverter implements ValueConverter {
+    private final OptionSetIndex.OptionSet optionSet;
+    private final String defaultValue;
+
+    public OptionSetConverter(OptionSetIndex.OptionSet optionSet, String defaultValue) {
+        this.optionSet = optionSet;
+        this.defaultValue = defaultValue;
+    }
+
+    @Override
+    public String convert(String value) {
+        String code = optionSet.findCode(value);
+        if (code != null) {
+            return code;
+        }
+        return defaultValue != null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,162 @@
+package com.intellisoft.findams.mapping;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * DHIS2 option sets indexed by option name, so resolving a name (or alias) to its option code is a hash lookup.
+ */
+public class OptionSetIndex {
+    private static final OptionSetIndex EMPTY = new OptionSetIndex(Map.of());
+
+    private final Map<String, OptionSet> optionSets;
+    private final String catalogueVersion;
+
+    private OptionSetIndex(Map<String, OptionSet> optionSets) {
+        this.optionSets = optionSets;
+        // Identifies the set of option set names, which is all that name matching depends on
+        this.catalogueVersion = Integer.toHexString(new TreeSet<>(optionSets.keySet()).toString().hashCode());
+    }
+
+    public static OptionSetIndex empty() {
+        return EMPTY;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public Set<String> names() {
+        return optionSets.keySet();
+    }
+
+    public boolean contains(String optionSetName) {
+        return optionSets.containsKey(optionSetName);
+    }
+
+    public OptionSet get(String optionSetName) {
+        return optionSets.get(optionSetName);
+    }
+
+    public int size() {
+        return optionSets.size();
+    }
+
+    public String getCatalogueVersion() {
+        return catalogueVersion;
+    }
+
+    public String findCode(String optionSetName, String optionName) {
+        OptionSet optionSet = optionSets.get(optionSetName);
+        return optionSet != null ? optionSet.findCode(optionName) : null;
+    }
+
+    public String findCodeIgnoreCase(String optionSetName, String optionName, String defaultCode) {
+        OptionSet optionSet = optionSets.get(optionSetName);
+        String code = optionSet != null ? optionSet.findCodeIgnoreCase(optionName) : null;
+        return code != null ? code : defaultCode;
+    }
+
+    public static class OptionSet {
+        private final String name;
+        private final Map<String, String> codeByName;
+        private final Map<String, String> codeByLowerCaseName;
+        private final Map<String, String> codeByAlias;
+
+        private OptionSet(String name, Map<String, String> codeByName, Map<String, String> codeByLowerCaseName, Map<String, String> codeByAlias) {
+            this.name = name;
+            this.codeByName = codeByName;
+            this.codeByLowerCaseName = codeByLowerCaseName;
+            this.codeByAlias = codeByAlias;
+        }
+
+        public static OptionSet empty(String name) {
+            return new OptionSet(name, Map.of(), Map.of(), Map.of());
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int size() {
+            return codeByName.size();
+        }
+
+        public Map<String, String> getCodeByName() {
+            return Collections.unmodifiableMap(codeByName);
+        }
+
+        /**
+         * Exact option name match. Aliases (case-insensitive) are checked first so they can override option names.
+         */
+        public String findCode(String optionName) {
+            if (optionName == null) {
+                return null;
+            }
+            if (!codeByAlias.isEmpty()) {
+                String code = codeByAlias.get(optionName.toLowerCase(Locale.ROOT));
+                if (code != null) {
+                    return code;
+                }
+            }
+            return codeByName.get(optionName);
+        }
+
+        public String findCodeIgnoreCase(String optionName) {
+            if (optionName == null) {
+                return null;
+            }
+            String code = findCode(optionName);
+            return code != null ? code : codeByLowerCaseName.get(optionName.toLowerCase(Locale.ROOT));
+        }
+
+        /**
+         * Returns a view of this option set with extra alias to code entries.
+         */
+        public OptionSet withAliases(Map<String, String> aliases) {
+            if (aliases == null || aliases.isEmpty()) {
+                return this;
+            }
+            Map<String, String> codeByAlias = new HashMap<>(this.codeByAlias);
+            aliases.forEach((alias, code) -> codeByAlias.put(alias.toLowerCase(Locale.ROOT), code));
+            return new OptionSet(name, codeByName, codeByLowerCaseName, codeByAlias);
+        }
+    }
+
+    public static class Builder {
+        private final Map<String, Map<String, String>> options = new LinkedHashMap<>();
+        private final Map<String, Map<String, String>> aliases = new HashMap<>();
+
+        public Builder optionSet(String optionSetName) {
+            options.computeIfAbsent(optionSetName, key -> new LinkedHashMap<>());
+            return this;
+        }
+
+        public Builder option(String optionSetName, String code, String optionName) {
+            // The first option with a given name wins, as DHIS2 returns options in sort order
+            options.computeIfAbsent(optionSetName, key -> new LinkedHashMap<>()).putIfAbsent(optionName, code);
+            return this;
+        }
+
+        public Builder alias(String optionSetName, String alias, String code) {
+            aliases.computeIfAbsent(optionSetName, key -> new HashMap<>()).put(alias.toLowerCase(Locale.ROOT), code);
+            return this;
+        }
+
+        public OptionSetIndex build() {
+            Map<String, OptionSet> optionSets = new HashMap<>();
+            options.forEach((optionSetName, codeByName) -> {
+                Map<String, String> codeByLowerCaseName = new HashMap<>();
+                codeByName.forEach((optionName, code) -> codeByLowerCaseName.putIfAbsent(optionName.toLowerCase(Locale.ROOT), code));
+                OptionSet optionSet = new OptionSet(optionSetName, new HashMap<>(codeByName), codeByLowerCaseName, Map.of());
+                optionSets.put(optionSetName, optionSet.withAliases(aliases.get(optionSetName)));
+            });
+            return new OptionSetIndex(optionSets);
+        }
+    }
+}
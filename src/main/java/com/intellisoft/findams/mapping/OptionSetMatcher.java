@@ -0,0 +1,75 @@
+package com.intellisoft.findams.mapping;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves attribute display names to the closest option set name (Jaro-Winkler similarity).
+ * Results only depend on the option set catalogue, so they are computed once per catalogue version and cached.
+ */
+@Slf4j
+@Component
+public class OptionSetMatcher {
+    private final Map<String, Match> matches = new ConcurrentHashMap<>();
+    private volatile String catalogueVersion;
+
+    public record Match(String attribute, String optionSet, double score, String catalogueVersion) {
+    }
+
+    public Match match(String attributeDisplayName, OptionSetIndex optionSetIndex, double minimumScore) {
+        String version = optionSetIndex.getCatalogueVersion();
+        if (!version.equals(catalogueVersion)) {
+            synchronized (this) {
+                if (!version.equals(catalogueVersion)) {
+                    log.info("Option set catalogue changed ({} -> {}), clearing {} cached matches", catalogueVersion, version, matches.size());
+                    matches.clear();
+                    catalogueVersion = version;
+                }
+            }
+        }
+
+        Match match = matches.computeIfAbsent(attributeDisplayName, name -> computeMatch(name, optionSetIndex, version));
+        if (!version.equals(match.catalogueVersion())) {
+            // Another caller is still working with an older catalogue
+            match = computeMatch(attributeDisplayName, optionSetIndex, version);
+        }
+        // The best candidate is cached whatever its score, the threshold only decides whether it is used
+        return match.score() >= minimumScore ? match : new Match(attributeDisplayName, null, match.score(), version);
+    }
+
+    public List<Match> getMatches() {
+        List<Match> snapshot = new ArrayList<>(matches.values());
+        snapshot.sort(Comparator.comparing(Match::attribute));
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    public String getCatalogueVersion() {
+        return catalogueVersion;
+    }
+
+    private Match computeMatch(String attributeDisplayName, OptionSetIndex optionSetIndex, String version) {
+        if (optionSetIndex.contains(attributeDisplayName)) {
+            return new Match(attributeDisplayName, attributeDisplayName, 1.0, version);
+        }
+
+        String attribute = attributeDisplayName.toLowerCase();
+        String closestMatch = null;
+        double bestScore = 0;
+        for (String optionSetName : optionSetIndex.names()) {
+            double score = StringUtils.getJaroWinklerDistance(optionSetName.toLowerCase(), attribute);
+            if (score > bestScore) {
+                bestScore = score;
+                closestMatch = optionSetName;
+            }
+        }
+        return new Match(attributeDisplayName, closestMatch, bestScore, version);
+    }
+}
@@ -0,0 +1,114 @@
+package com.intellisoft.findams.mapping;
+
+import com.intellisoft.findams.constants.Constants;
+import com.intellisoft.findams.dto.Attribute;
+import com.intellisoft.findams.dto.DataValue;
+import com.intellisoft.findams.dto.Enrollment;
+import com.intellisoft.findams.dto.Event;
+import com.intellisoft.findams.dto.TestTypeValue;
+import com.intellisoft.findams.dto.TrackedEntityInstance;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Maps one normalized WHONET row to exactly one tracked entity instance payload,
+ * using a {@link WhonetMappingPlan} compiled from the file header. Given the row's key, the instance, its
+ * enrollment and its events get uids derived from it, so sending the row again updates them in DHIS2.
+ */
+@SuppressWarnings("unchecked")
+public class TrackedEntityInstanceMapper {
+    private static final Attribute WITH_AST = new Attribute(Constants.TEST_TYPE_ID, "Culture with AST");
+    private static final Attribute WITHOUT_AST = new Attribute(Constants.TEST_TYPE_ID, "Culture without AST");
+
+    private final String[] header;
+    private final WhonetMappingPlan plan;
+    private final Function<String, String> awareClassifier;
+    private final int specDateColumnIndex;
+    private final String completedDate;
+
+    // An event's data values only depend on the column and the result, so they are built once per file
+    private static final String[] RESULTS = {"R", "S", "I"};
+    private final List<DataValue>[][] eventDataValues;
+
+    public TrackedEntityInstanceMapper(WhonetMappingPlan plan, Function<String, String> awareClassifier) {
+        this.header = plan.getHeader();
+        this.plan = plan;
+        this.awareClassifier = awareClassifier;
+        this.specDateColumnIndex = plan.getSpecDateColumnIndex();
+        this.completedDate = LocalDate.now().toString();
+        this.eventDataValues = new List[header.length][];
+    }
+
+    public TrackedEntityInstance map(String[] row) {
+        return map(row, 0, false);
+    }
+
+    /**
+     * Maps the row with uids derived from its {@link WhonetRowFingerprint} key.
+     */
+    public TrackedEntityInstance map(String[] row, long key) {
+        return map(row, key, true);
+    }
+
+    private TrackedEntityInstance map(String[] row, long key, boolean withUids) {
+        String specDateValue = specDateColumnIndex >= 0 ? row[specDateColumnIndex] : null;
+
+        List<Event> events = new ArrayList<>();
+        for (int j = 0; j < row.length && j < header.length; j++) {
+            int result = resultIndex(row[j]);
+            if (result >= 0) {
+                String event = withUids ? WhonetRowFingerprint.uid(WhonetRowFingerprint.partKey(key, header[j])) : null;
+                events.add(Event.enrollmentEvent(event, Constants.WHONET_PROGRAM_ID, Constants.WHONET_PROGRAM_STAGE_ID, Constants.FIND_AMS_ORG_UNIT, specDateValue, completedDate, dataValues(j, result)));
+            }
+        }
+
+        String enrollmentUid = withUids ? WhonetRowFingerprint.uid(WhonetRowFingerprint.partKey(key, "enrollment")) : null;
+        Enrollment enrollment = new Enrollment(enrollmentUid, Constants.FIND_AMS_ORG_UNIT, Constants.WHONET_PROGRAM_ID, specDateValue, specDateValue, "COMPLETED", events);
+
+        int[] columnIndexes = plan.getColumnIndexes();
+        String[] attributeIds = plan.getAttributeIds();
+        ValueConverter[] converters = plan.getConverters();
+        Attribute[] attributes = new Attribute[columnIndexes.length + 1];
+        for (int k = 0; k < columnIndexes.length; k++) {
+            // Map attribute values to option set codes
+            String cellValue = converters[k].convert(row[columnIndexes[k]]);
+            attributes[k] = new Attribute(attributeIds[k], cellValue != null ? cellValue : "");
+        }
+        attributes[columnIndexes.length] = events.isEmpty() ? WITHOUT_AST : WITH_AST;
+
+        return new TrackedEntityInstance(withUids ? WhonetRowFingerprint.uid(key) : null, Constants.FIND_AMS_TRACKED_ENTITY_TYPE_ID, Constants.FIND_AMS_ORG_UNIT, List.of(enrollment), Arrays.asList(attributes));
+    }
+
+    private List<DataValue> dataValues(int column, int result) {
+        if (eventDataValues[column] == null) {
+            DataValue antibiotic = new DataValue(Constants.ANTIBIOTIC_ID, header[column]);
+            DataValue awareClassification = new DataValue(Constants.AWARE_CLASSIFICATION, awareClassifier.apply(header[column]));
+            eventDataValues[column] = new List[RESULTS.length];
+            for (int i = 0; i < RESULTS.length; i++) {
+                eventDataValues[column][i] = List.of(antibiotic, awareClassification, new DataValue(Constants.RESULT_ID, determineTestType(RESULTS[i]).getCultureType()));
+            }
+        }
+        return eventDataValues[column][result];
+    }
+
+    private static int resultIndex(String cellValue) {
+        for (int i = 0; i < RESULTS.length; i++) {
+            if (RESULTS[i].equals(cellValue)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static TestTypeValue determineTestType(String cellValue) {
+        if (cellValue.equals("R") || cellValue.equals("S") || cellValue.equals("I")) {
+            return new TestTypeValue("Culture with AST", cellValue);
+        } else {
+            return new TestTypeValue("Culture without AST", "N/A");
+        }
+    }
+}
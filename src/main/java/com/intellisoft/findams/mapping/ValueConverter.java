@@ -0,0 +1,12 @@
+package com.intellisoft.findams.mapping;
+
+/**
+ * Translates a raw cell value into the value sent to DHIS2 for one attribute.
+ */
+@FunctionalInterface
+public interface ValueConverter {
+
+    ValueConverter IDENTITY = value -> value;
+
+    String convert(String value);
+}
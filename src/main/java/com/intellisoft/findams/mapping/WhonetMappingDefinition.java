@@ -0,0 +1,58 @@
+package com.intellisoft.findams.mapping;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.core.io.Resource;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Site-editable description of how WHONET columns map to DHIS2 tracked entity attributes.
+ * Loaded from YAML or JSON (see {@code whonet-mapping.yml}), so new columns do not need a rebuild.
+ */
+@NoArgsConstructor
+@Getter
+@Setter
+public class WhonetMappingDefinition {
+    private static final ObjectMapper MAPPER = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // Minimum Jaro-Winkler similarity for an attribute name to be matched to an option set name
+    private double minimumMatchScore = 0.9;
+    private List<AttributeMapping> attributes = new ArrayList<>();
+
+    @NoArgsConstructor
+    @Getter
+    @Setter
+    public static class AttributeMapping {
+        // DHIS2 tracked entity attribute display name
+        private String attribute;
+        // WHONET export column header
+        private String column;
+        // Option set used to translate values to codes; matched by attribute name when left out
+        private String optionSet;
+        // Value sent when an option set is configured but has no option for the cell value
+        private String defaultValue;
+        // Cell values (case-insensitive) that map directly to an option code
+        private Map<String, String> aliases = new LinkedHashMap<>();
+    }
+
+    public static WhonetMappingDefinition load(Resource resource) throws IOException {
+        try (InputStream inputStream = resource.getInputStream()) {
+            String filename = resource.getFilename();
+            if (filename != null && filename.toLowerCase().endsWith(".json")) {
+                return MAPPER.readValue(inputStream, WhonetMappingDefinition.class);
+            }
+            Object tree = new Yaml().load(inputStream);
+            return MAPPER.convertValue(tree, WhonetMappingDefinition.class);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.intellisoft.findams.mapping;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column projection compiled once per file: every mapped attribute is resolved to a column index,
+ * a DHIS2 attribute id and a value converter, so the row loop is plain array indexing.
+ */
+@Slf4j
+@Getter
+public class WhonetMappingPlan {
+    private final String[] header;
+    private final int[] columnIndexes;
+    private final String[] attributeIds;
+    private final ValueConverter[] converters;
+    private final int specDateColumnIndex;
+
+    private WhonetMappingPlan(String[] header, int[] columnIndexes, String[] attributeIds, ValueConverter[] converters) {
+        this.header = header;
+        this.columnIndexes = columnIndexes;
+        this.attributeIds = attributeIds;
+        this.converters = converters;
+        this.specDateColumnIndex = indexOf(header, "SPEC_DATE");
+    }
+
+    public static WhonetMappingPlan compile(WhonetMappingDefinition definition, String[] header, Map<String, String> attributeIdMapping, OptionSetIndex optionSetIndex, OptionSetMatcher optionSetMatcher) {
+        List<Integer> columnIndexes = new ArrayList<>();
+        List<String> attributeIds = new ArrayList<>();
+        List<ValueConverter> converters = new ArrayList<>();
+
+        for (WhonetMappingDefinition.AttributeMapping mapping : definition.getAttributes()) {
+            int columnIndex = indexOf(header, mapping.getColumn());
+            if (columnIndex < 0) {
+                continue;
+            }
+            String attributeId = attributeIdMapping.get(mapping.getAttribute());
+            if (attributeId == null) {
+                log.warn("No tracked entity attribute named '{}', column {} will not be imported", mapping.getAttribute(), mapping.getColumn());
+                continue;
+            }
+
+            columnIndexes.add(columnIndex);
+            attributeIds.add(attributeId);
+            converters.add(createConverter(mapping, optionSetIndex, optionSetMatcher, definition.getMinimumMatchScore()));
+        }
+
+        return new WhonetMappingPlan(header, columnIndexes.stream().mapToInt(Integer::intValue).toArray(), attributeIds.toArray(new String[0]), converters.toArray(new ValueConverter[0]));
+    }
+
+    public int size() {
+        return columnIndexes.length;
+    }
+
+    private static ValueConverter createConverter(WhonetMappingDefinition.AttributeMapping mapping, OptionSetIndex optionSetIndex, OptionSetMatcher optionSetMatcher, double minimumMatchScore) {
+        String optionSetName = mapping.getOptionSet();
+        if (optionSetName == null) {
+            // Handling for attributes whose display name doesn't match exactly with an option set name
+            optionSetName = optionSetMatcher.match(mapping.getAttribute(), optionSetIndex, minimumMatchScore).optionSet();
+        }
+
+        OptionSetIndex.OptionSet optionSet = optionSetName != null ? optionSetIndex.get(optionSetName) : null;
+        if (optionSet == null) {
+            if (mapping.getOptionSet() != null) {
+                log.warn("Option set '{}' configured for attribute '{}' was not found", mapping.getOptionSet(), mapping.getAttribute());
+            }
+            if (mapping.getAliases().isEmpty() && mapping.getDefaultValue() == null) {
+                return ValueConverter.IDENTITY;
+            }
+            optionSet = OptionSetIndex.OptionSet.empty(mapping.getAttribute());
+        }
+        return new OptionSetConverter(optionSet.withAliases(mapping.getAliases()), mapping.getDefaultValue());
+    }
+
+    private static int indexOf(String[] header, String columnName) {
+        for (int j = 0; j < header.length; j++) {
+            if (header[j].equalsIgnoreCase(columnName)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+}
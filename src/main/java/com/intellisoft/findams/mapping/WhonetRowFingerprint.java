@@ -0,0 +1,102 @@
+package com.intellisoft.findams.mapping;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 64-bit fingerprints of WHONET rows, computed from the raw values before any normalization. The key identifies
+ * an isolate by laboratory, SPEC_NUM, SPEC_DATE, PATIENT_ID, ORGANISM and ISOL_NUM, whichever of them the file
+ * has; the content hash covers every cell, so a row whose key was seen before can be told apart from one that
+ * changed since.
+ */
+public class WhonetRowFingerprint {
+    private static final String[] KEY_COLUMNS = {"LABORATORY", "SPEC_NUM", "SPEC_DATE", "PATIENT_ID", "ORGANISM", "ISOL_NUM"};
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final String UID_CHARACTERS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private final int[] keyColumns;
+    private final boolean usable;
+
+    public WhonetRowFingerprint(String[] header) {
+        int[] columns = new int[KEY_COLUMNS.length];
+        int count = 0;
+        boolean hasSpecNum = false;
+        for (String keyColumn : KEY_COLUMNS) {
+            for (int j = 0; j < header.length; j++) {
+                if (keyColumn.equals(header[j])) {
+                    columns[count++] = j;
+                    hasSpecNum |= keyColumn.equals("SPEC_NUM");
+                    break;
+                }
+            }
+        }
+        this.keyColumns = Arrays.copyOf(columns, count);
+        this.usable = hasSpecNum;
+    }
+
+    /**
+     * Whether the file has the SPEC_NUM column at least, without which rows cannot be told apart.
+     */
+    public boolean isUsable() {
+        return usable;
+    }
+
+    public long key(String[] row) {
+        long hash = FNV_OFFSET;
+        for (int column : keyColumns) {
+            String value = column < row.length ? row[column] : null;
+            hash = hash(hash, value == null ? "" : value.trim().toUpperCase(Locale.ROOT));
+        }
+        return mix(hash);
+    }
+
+    public long content(String[] row) {
+        long hash = FNV_OFFSET;
+        for (String value : row) {
+            hash = hash(hash, value == null ? "" : value);
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The DHIS2 uid of a key: a letter followed by 10 letters or digits, spelling out all 64 bits of the key, so
+     * distinct keys never share a uid.
+     */
+    public static String uid(long key) {
+        char[] uid = new char[11];
+        long value = key;
+        for (int i = uid.length - 1; i > 0; i--) {
+            uid[i] = UID_CHARACTERS.charAt((int) Long.remainderUnsigned(value, 62));
+            value = Long.divideUnsigned(value, 62);
+        }
+        // What is left is below 2^64 / 62^10, about 22, so it fits in the letters
+        uid[0] = UID_CHARACTERS.charAt((int) value);
+        return new String(uid);
+    }
+
+    /**
+     * The key of one part of a row's payload, such as its enrollment or the event of one antibiotic.
+     */
+    public static long partKey(long key, String part) {
+        return mix(hash(key, part));
+    }
+
+    // FNV-1a over the characters, with a separator so that ("ab", "c") and ("a", "bc") differ
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ 0x1f) * FNV_PRIME;
+    }
+
+    // Spreads FNV's weak low bits, as the keys also index a hash table and a Bloom filter
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
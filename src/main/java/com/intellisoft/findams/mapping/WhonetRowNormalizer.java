@@ -0,0 +1,102 @@
+package com.intellisoft.findams.mapping;
+
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+
+/**
+ * Applies the per-row clean-up before mapping: sex codes,
+ * duplicate/blank SPEC_NUM values and SPEC_DATE/DATE_ADMIS formatting.
+ */
+@Slf4j
+public class WhonetRowNormalizer {
+    private final Map<String, Integer> specNumOccurrences = new HashMap<>();
+    private final int currentYear = Calendar.getInstance().get(Calendar.YEAR);
+    private int sexColumnIndex = -1;
+    private int specNumColumnIndex = -1;
+    private int specDateColumnIndex = -1;
+    private int dateAdmissionColumnIndex = -1;
+    private final DateNormalizer specDates = new DateNormalizer();
+    private final DateNormalizer admissionDates = new DateNormalizer();
+
+    public WhonetRowNormalizer(String[] header) {
+        // Find the columns for "SEX", "SPEC_NUM", "SPEC_DATE" and "DATE_ADMIS"
+        for (int j = 0; j < header.length; j++) {
+            String columnName = header[j];
+            if (columnName.equals("SEX")) {
+                sexColumnIndex = j;
+            } else if (columnName.equals("SPEC_NUM")) {
+                specNumColumnIndex = j;
+            } else if (columnName.equals("SPEC_DATE")) {
+                specDateColumnIndex = j;
+            } else if (columnName.equals("DATE_ADMIS")) {
+                dateAdmissionColumnIndex = j;
+            }
+        }
+    }
+
+    public void normalize(String[] row) {
+        if (specNumColumnIndex < 0 || specDateColumnIndex < 0) {
+            return;
+        }
+
+        if (sexColumnIndex >= 0) {
+            String sexValue = row[sexColumnIndex];
+            if ("m".equalsIgnoreCase(sexValue)) {
+                row[sexColumnIndex] = "Male";
+            } else if ("f".equalsIgnoreCase(sexValue)) {
+                row[sexColumnIndex] = "Female";
+            } else {
+                row[sexColumnIndex] = "Other";
+            }
+        }
+
+        // Process SPEC_NUM column
+        String specNum = row[specNumColumnIndex];
+        if (specNum != null && !specNum.isEmpty()) {
+            int occurrence = specNumOccurrences.merge(specNum, 1, Integer::sum);
+            if (occurrence > 1) {
+                // Number duplicates by occurrence, so the same row gets the same code in every export
+                row[specNumColumnIndex] = specNum + currentYear + "-" + occurrence;
+            } else {
+                // Append the current year to the "SPEC_NUM" value
+                row[specNumColumnIndex] = specNum + currentYear;
+            }
+        } else {
+            // Handle blank cells, assign a new unique code with the current year appended
+            row[specNumColumnIndex] = UUID.randomUUID().toString() + currentYear;
+        }
+
+        // Format the SPEC_DATE column to YYYY-MM-DD
+        row[specDateColumnIndex] = specDates.normalize(row[specDateColumnIndex]);
+
+        // Format the DATE_ADMIS column to YYYY-MM-DD
+        if (dateAdmissionColumnIndex >= 0) {
+            row[dateAdmissionColumnIndex] = admissionDates.normalize(row[dateAdmissionColumnIndex]);
+        }
+    }
+
+    /**
+     * Adds the date counts of the file read so far, and the format detected for each date column, to the summary.
+     */
+    public void reportDates(FileParseSummaryDto summary) {
+        Map<String, String> dateFormats = new LinkedHashMap<>();
+        putDominantPattern(dateFormats, "SPEC_DATE", specDates);
+        putDominantPattern(dateFormats, "DATE_ADMIS", admissionDates);
+        int normalized = specDates.getNormalizedCount() + admissionDates.getNormalizedCount();
+        int invalid = specDates.getInvalidCount() + admissionDates.getInvalidCount();
+        if (invalid > 0) {
+            log.warn("{} dates could not be parsed and were left as they are", invalid);
+        }
+        summary.setDatesNormalized(normalized);
+        summary.setInvalidDates(invalid);
+        summary.setDateFormats(dateFormats);
+    }
+
+    private static void putDominantPattern(Map<String, String> dateFormats, String column, DateNormalizer dates) {
+        if (dates.getDominantPattern() != null) {
+            dateFormats.put(column, dates.getDominantPattern());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.intellisoft.findams.parser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Emits the elements of one array field of a JSON object as the response body arrives, using Jackson's
+ * non-blocking parser. Only the tokens of the element being read are buffered, so memory is bounded by the
+ * largest element rather than by the whole body. Fields other than the array are skipped.
+ */
+public class JsonArrayStreamReader {
+
+    private final ObjectMapper objectMapper;
+    private final String arrayField;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private int depth;
+    // Depth of the array's elements once it was found, 0 before, -1 after it ended
+    private int elementDepth;
+    private boolean expectArray;
+    private TokenBuffer element;
+
+    private JsonArrayStreamReader(ObjectMapper objectMapper, String arrayField) throws IOException {
+        this.objectMapper = objectMapper;
+        this.arrayField = arrayField;
+        this.parser = objectMapper.getFactory().createNonBlockingByteArrayParser();
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * The elements of {@code arrayField} in the top-level object of {@code body}, one at a time.
+     */
+    public static Flux<JsonNode> elements(Flux<DataBuffer> body, String arrayField, ObjectMapper objectMapper) {
+        return Flux.defer(() -> {
+            JsonArrayStreamReader reader;
+            try {
+                reader = new JsonArrayStreamReader(objectMapper, arrayField);
+            } catch (IOException e) {
+                return Flux.error(e);
+            }
+            return body.concatMapIterable(reader::feed).concatWith(Flux.defer(() -> Flux.fromIterable(reader.endOfInput())));
+        });
+    }
+
+    private List<JsonNode> feed(DataBuffer buffer) {
+        try {
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            feeder.feedInput(bytes, 0, bytes.length);
+            return drain();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    private List<JsonNode> endOfInput() {
+        feeder.endOfInput();
+        try {
+            List<JsonNode> elements = drain();
+            if (depth != 0 || element != null) {
+                throw new IOException("Incomplete JSON: the body ended inside " + (element != null ? "an element of " + arrayField : "an object"));
+            }
+            return elements;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private List<JsonNode> drain() throws IOException {
+        List<JsonNode> elements = new ArrayList<>();
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            if (expectArray) {
+                expectArray = false;
+                if (token != JsonToken.START_ARRAY) {
+                    throw new IOException("Expected " + arrayField + " to be an array but found " + token);
+                }
+                depth++;
+                elementDepth = depth;
+                continue;
+            }
+            if (element != null) {
+                element.copyCurrentEvent(parser);
+            } else if (elementDepth > 0 && depth == elementDepth && token != JsonToken.END_ARRAY) {
+                element = new TokenBuffer(parser);
+                element.copyCurrentEvent(parser);
+            }
+
+            if (token.isStructStart()) {
+                depth++;
+            } else if (token.isStructEnd()) {
+                depth--;
+                if (elementDepth > 0 && depth < elementDepth) {
+                    // The end of the array itself
+                    elementDepth = -1;
+                }
+            } else if (elementDepth == 0 && depth == 1 && token == JsonToken.FIELD_NAME && arrayField.equals(parser.currentName())) {
+                // The value may only arrive with the next buffer
+                expectArray = true;
+                continue;
+            }
+
+            if (element != null && depth == elementDepth) {
+                elements.add(objectMapper.readTree(element.asParser(objectMapper)));
+                element = null;
+            }
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,339 @@
+package com.intellisoft.findams.parser;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Row-at-a-time reader for delimited WHONET exports (pipe, tab, comma or semicolon separated).
+ * Only one row is held in memory at a time, so heap usage does not grow with the file size.
+ * <p>
+ * The encoding comes from a byte order mark, or else from the first 64 KB: UTF-8 if they decode as UTF-8,
+ * windows-1252 otherwise. Invalid UTF-8 after those 64 KB is silently replaced with U+FFFD.
+ */
+public class WhonetFileReader implements Closeable {
+
+    private static final char[] CANDIDATE_DELIMITERS = {'|', '\t', ',', ';'};
+    private static final char QUOTE = '"';
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final Charset FALLBACK_CHARSET = Charset.forName("windows-1252");
+
+    private final Reader reader;
+    private final Charset charset;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder field = new StringBuilder(64);
+    private final List<String> fields = new ArrayList<>();
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+
+    private char delimiter;
+    private String[] header;
+    private long rowNumber;
+
+    private WhonetFileReader(Reader reader, Charset charset) {
+        this.reader = reader;
+        this.charset = charset;
+    }
+
+    public static WhonetFileReader open(Path path) throws IOException {
+        return open(path, null);
+    }
+
+    public static WhonetFileReader open(Path path, Character delimiter) throws IOException {
+        return open(Files.newInputStream(path), delimiter);
+    }
+
+    public static WhonetFileReader open(InputStream inputStream, Character delimiter) throws IOException {
+        BufferedInputStream input = new BufferedInputStream(inputStream, SAMPLE_SIZE);
+        WhonetFileReader fileReader = null;
+        try {
+            Charset charset = detectCharset(input);
+            fileReader = new WhonetFileReader(new InputStreamReader(input, charset), charset);
+            fileReader.readHeader(delimiter);
+            return fileReader;
+        } catch (IOException | RuntimeException e) {
+            if (fileReader != null) {
+                fileReader.close();
+            } else {
+                input.close();
+            }
+            throw e;
+        }
+    }
+
+    public String[] getHeader() {
+        return header;
+    }
+
+    public char getDelimiter() {
+        return delimiter;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    /**
+     * Returns the next data row padded to the header width, or {@code null} once the file is exhausted.
+     * Blank lines are skipped.
+     */
+    public String[] nextRow() throws IOException {
+        while (true) {
+            List<String> values = readRecord();
+            if (values == null) {
+                return null;
+            }
+            if (values.size() == 1 && values.get(0).isEmpty()) {
+                continue;
+            }
+            rowNumber++;
+            String[] row = values.toArray(new String[Math.max(values.size(), header.length)]);
+            for (int i = values.size(); i < row.length; i++) {
+                row[i] = "";
+            }
+            return row;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void readHeader(Character configuredDelimiter) throws IOException {
+        String headerLine = readLine();
+        if (headerLine == null) {
+            throw new IOException("WHONET file is empty");
+        }
+        delimiter = configuredDelimiter != null ? configuredDelimiter : detectDelimiter(headerLine);
+
+        List<String> columns = splitRecord(headerLine);
+        header = new String[columns.size()];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = columns.get(i).trim();
+        }
+    }
+
+    // The header never contains quoted line breaks, so it can be read as a plain line.
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (peek() == '\n') {
+                    read();
+                }
+                break;
+            }
+            line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        return line.toString();
+    }
+
+    private List<String> splitRecord(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == QUOTE && i + 1 < line.length() && line.charAt(i + 1) == QUOTE) {
+                    value.append(QUOTE);
+                    i++;
+                } else if (c == QUOTE) {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == QUOTE && value.length() == 0) {
+                quoted = true;
+            } else if (c == delimiter) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private List<String> readRecord() throws IOException {
+        int c = read();
+        if (c == -1) {
+            return null;
+        }
+
+        fields.clear();
+        field.setLength(0);
+        boolean quoted = false;
+        boolean fieldStart = true;
+
+        while (c != -1) {
+            char ch = (char) c;
+            if (quoted) {
+                if (ch == QUOTE) {
+                    if (peek() == QUOTE) {
+                        read();
+                        field.append(QUOTE);
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(ch);
+                }
+            } else if (ch == QUOTE && fieldStart) {
+                quoted = true;
+                fieldStart = false;
+            } else if (ch == delimiter) {
+                fields.add(field.toString());
+                field.setLength(0);
+                fieldStart = true;
+            } else if (ch == '\n') {
+                break;
+            } else if (ch == '\r') {
+                if (peek() == '\n') {
+                    read();
+                }
+                break;
+            } else {
+                field.append(ch);
+                fieldStart = false;
+            }
+            c = read();
+        }
+
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private int read() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position >= limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        int read;
+        do {
+            read = reader.read(buffer, 0, buffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            endOfInput = true;
+            return false;
+        }
+        position = 0;
+        limit = read;
+        return true;
+    }
+
+    private char detectDelimiter(String headerLine) {
+        char detected = CANDIDATE_DELIMITERS[0];
+        int bestCount = 0;
+        for (char candidate : CANDIDATE_DELIMITERS) {
+            int count = 0;
+            boolean quoted = false;
+            for (int i = 0; i < headerLine.length(); i++) {
+                char c = headerLine.charAt(i);
+                if (c == QUOTE) {
+                    quoted = !quoted;
+                } else if (c == candidate && !quoted) {
+                    count++;
+                }
+            }
+            if (count > bestCount) {
+                bestCount = count;
+                detected = candidate;
+            }
+        }
+        return detected;
+    }
+
+    private static Charset detectCharset(BufferedInputStream input) throws IOException {
+        input.mark(SAMPLE_SIZE);
+        byte[] sample = input.readNBytes(SAMPLE_SIZE);
+        input.reset();
+
+        if (startsWith(sample, 0xEF, 0xBB, 0xBF)) {
+            input.skip(3);
+            return StandardCharsets.UTF_8;
+        }
+        if (startsWith(sample, 0xFF, 0xFE)) {
+            input.skip(2);
+            return StandardCharsets.UTF_16LE;
+        }
+        if (startsWith(sample, 0xFE, 0xFF)) {
+            input.skip(2);
+            return StandardCharsets.UTF_16BE;
+        }
+        return isValidUtf8(sample) ? StandardCharsets.UTF_8 : FALLBACK_CHARSET;
+    }
+
+    private static boolean startsWith(byte[] sample, int... bom) {
+        if (sample.length < bom.length) {
+            return false;
+        }
+        for (int i = 0; i < bom.length; i++) {
+            if ((sample[i] & 0xFF) != bom[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidUtf8(byte[] sample) {
+        // The sample may end in the middle of a multi-byte sequence, so drop an incomplete trailing sequence
+        int length = sample.length;
+        int back = 0;
+        while (back < 3 && length - back - 1 >= 0 && (sample[length - back - 1] & 0xC0) == 0x80) {
+            back++;
+        }
+        if (length - back - 1 >= 0 && (sample[length - back - 1] & 0xC0) == 0xC0) {
+            length = length - back - 1;
+        }
+
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+        try {
+            decoder.decode(ByteBuffer.wrap(Arrays.copyOf(sample, length)));
+            return true;
+        } catch (CharacterCodingException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.intellisoft.findams.reference;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Categorises a diagnosis into one of the top infectious conditions, either by ICD-10 code or by its
+ * sub-classification description. Codes live in a prefix trie keyed on the code without its dot, so a lookup
+ * costs O(code length): a more specific code resolves to its nearest listed ancestor ({@code A00.01} to
+ * {@code A00.0}), and a category resolves when all of its listed sub-codes share a condition ({@code A00}).
+ */
+public class IcdCodeIndex {
+    private static final int RADIX = 36;
+
+    private final Node root;
+    private final Map<String, String> conditionByDescription;
+    private final int size;
+
+    private IcdCodeIndex(Node root, Map<String, String> conditionByDescription, int size) {
+        this.root = root;
+        this.conditionByDescription = conditionByDescription;
+        this.size = size;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static IcdCodeIndex empty() {
+        return builder().build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the condition for a diagnosis sent as an ICD code, as a description, or as a code followed by its
+     * description (e.g. {@code "A09 Diarrhoea and gastroenteritis"}); null if it cannot be categorised.
+     */
+    public String categorise(String diagnosis) {
+        if (diagnosis == null || diagnosis.isBlank()) {
+            return null;
+        }
+        String trimmed = diagnosis.trim();
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+        if (!looksLikeCode(trimmed, end)) {
+            return conditionByDescription.get(normalizeDescription(trimmed));
+        }
+        String condition = findByCode(trimmed.substring(0, end));
+        if (condition == null && end < trimmed.length()) {
+            condition = conditionByDescription.get(normalizeDescription(trimmed.substring(end)));
+        }
+        return condition;
+    }
+
+    public String findByCode(String code) {
+        if (code == null) {
+            return null;
+        }
+        Node node = root;
+        String deepest = null;
+        boolean consumed = true;
+        for (int i = 0; i < code.length(); i++) {
+            int digit = digit(code.charAt(i));
+            if (digit == -2) {
+                continue;
+            }
+            Node child = digit < 0 || node.children == null ? null : node.children[digit];
+            if (child == null) {
+                consumed = false;
+                break;
+            }
+            node = child;
+            if (node.condition != null) {
+                deepest = node.condition;
+            }
+        }
+        if (consumed && node.condition == null && node != root) {
+            return node.commonCondition;
+        }
+        return deepest;
+    }
+
+    // An ICD-10 code is a letter followed by two digits, optionally with a dotted sub-code
+    private static boolean looksLikeCode(String value, int end) {
+        return end >= 3 && Character.isLetter(value.charAt(0)) && Character.isDigit(value.charAt(1)) && Character.isDigit(value.charAt(2));
+    }
+
+    // Index of the character in the trie, -2 for separators to skip and -1 for anything else
+    private static int digit(char c) {
+        if (c == '.' || c == '-' || c == ' ') {
+            return -2;
+        }
+        return Character.digit(Character.toUpperCase(c), RADIX);
+    }
+
+    static String normalizeDescription(String description) {
+        StringBuilder normalized = new StringBuilder(description.length());
+        boolean space = false;
+        for (int i = 0; i < description.length(); i++) {
+            char c = Character.toLowerCase(description.charAt(i));
+            if (Character.isLetterOrDigit(c)) {
+                if (space && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                normalized.append(c);
+                space = false;
+            } else {
+                space = true;
+            }
+        }
+        return normalized.toString();
+    }
+
+    private static final class Node {
+        private Node[] children;
+        private String condition;
+        // Condition shared by every code under this node, or null if they differ
+        private String commonCondition;
+        private boolean mixed;
+    }
+
+    public static class Builder {
+        private final Node root = new Node();
+        private final Map<String, String> conditionByDescription = new HashMap<>();
+        private int size;
+
+        public Builder add(String code, String description, String condition) {
+            if (condition == null || condition.isEmpty()) {
+                return this;
+            }
+            if (description != null && !description.isBlank()) {
+                conditionByDescription.putIfAbsent(normalizeDescription(description), condition);
+            }
+            if (code == null || code.isBlank()) {
+                return this;
+            }
+
+            Node node = root;
+            share(node, condition);
+            for (int i = 0; i < code.length(); i++) {
+                int digit = digit(code.charAt(i));
+                if (digit == -2) {
+                    continue;
+                }
+                if (digit < 0) {
+                    return this;
+                }
+                if (node.children == null) {
+                    node.children = new Node[RADIX];
+                }
+                if (node.children[digit] == null) {
+                    node.children[digit] = new Node();
+                }
+                node = node.children[digit];
+                share(node, condition);
+            }
+            if (node.condition == null) {
+                node.condition = condition;
+                size++;
+            }
+            return this;
+        }
+
+        private static void share(Node node, String condition) {
+            if (node.mixed) {
+                return;
+            }
+            if (node.commonCondition == null) {
+                node.commonCondition = condition;
+            } else if (!node.commonCondition.equals(condition)) {
+                node.commonCondition = null;
+                node.mixed = true;
+            }
+        }
+
+        public IcdCodeIndex build() {
+            return new IcdCodeIndex(root, Map.copyOf(conditionByDescription), size);
+        }
+    }
+}
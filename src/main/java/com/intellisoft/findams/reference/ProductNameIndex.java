@@ -0,0 +1,269 @@
+package com.intellisoft.findams.reference;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Normalized and fuzzy lookup of free-text product names (as sent by FunSoft) against a catalogue of
+ * antibiotic names. Names are reduced to their active ingredients before matching, so strengths and dosage
+ * forms do not get in the way. "/" and "+" read as "and", and a beta-lactamase inhibitor combined with another
+ * ingredient reads as "enzyme inhibitor", the way ATC names combination products. A name is looked up in this order:
+ * <ol>
+ *     <li>the normalized name exactly, with confidence 1.0;</li>
+ *     <li>the catalogue name with the most tokens that are all contained in the query, with confidence
+ *     {@value #CONTAINMENT_CONFIDENCE} scaled by the share of the query's ingredients it covers, so that a
+ *     combination product does not resolve to one of its ingredients;</li>
+ *     <li>the catalogue name with the best trigram Dice coefficient, with that coefficient as confidence.</li>
+ * </ol>
+ * Results are memoized per raw query, because a sync sees the same few hundred product names many times over.
+ */
+public class ProductNameIndex<V> {
+    static final double CONTAINMENT_CONFIDENCE = 0.9;
+    private static final int MAX_MEMOIZED_QUERIES = 10_000;
+
+    // Strengths, units, dosage forms and routes that say nothing about the active ingredient
+    private static final Set<String> NOISE_TOKENS = Set.of(
+            "mg", "g", "gm", "mcg", "ug", "ml", "l", "iu", "mu", "units", "w", "v",
+            "tab", "tabs", "tablet", "tablets", "cap", "caps", "capsule", "capsules", "susp", "suspension",
+            "syr", "syrup", "inj", "injection", "injectable", "vial", "vials", "amp", "ampoule", "infusion",
+            "powder", "for", "oral", "solution", "soln", "sachet", "cream", "ointment", "drops", "eye", "ear",
+            "iv", "im", "po", "bp", "usp", "dt", "dispersible", "film", "coated", "sr", "er", "xr", "mr", "pfs");
+
+    // Salts and hydrates, which name the form of an ingredient rather than another ingredient
+    private static final Set<String> SALT_TOKENS = Set.of(
+            "hydrochloride", "hcl", "sodium", "disodium", "potassium", "calcium", "magnesium", "sulfate", "sulphate",
+            "phosphate", "acetate", "citrate", "succinate", "ethylsuccinate", "stearate", "estolate", "lactobionate",
+            "hyclate", "mesylate", "tartrate", "palmitate", "hydrate", "monohydrate", "dihydrate", "trihydrate");
+
+    // Inhibitors that ATC names "enzyme inhibitor" when combined, e.g. "Amoxicillin and enzyme inhibitor"
+    private static final Set<String> ENZYME_INHIBITORS = Set.of(
+            "clavulanic", "clavulanate", "tazobactam", "sulbactam", "avibactam", "relebactam", "vaborbactam", "cilastatin");
+
+    private static final String AND = "and";
+
+    private final List<String> names;
+    private final List<V> values;
+    private final Map<String, Integer> byNormalizedName;
+    private final List<Set<String>> tokens;
+    private final Map<Long, int[]> postings;
+    private final int[] trigramCounts;
+    private final Map<String, Match<V>> memo = new ConcurrentHashMap<>();
+
+    private ProductNameIndex(Map<String, V> catalogue) {
+        names = new ArrayList<>(catalogue.size());
+        values = new ArrayList<>(catalogue.size());
+        byNormalizedName = new HashMap<>();
+        tokens = new ArrayList<>(catalogue.size());
+
+        Map<Long, List<Integer>> postingLists = new HashMap<>();
+        List<Integer> counts = new ArrayList<>(catalogue.size());
+        for (Map.Entry<String, V> entry : catalogue.entrySet()) {
+            String normalized = normalize(entry.getKey());
+            if (normalized.isEmpty() || byNormalizedName.containsKey(normalized)) {
+                continue;
+            }
+            int id = names.size();
+            names.add(entry.getKey());
+            values.add(entry.getValue());
+            byNormalizedName.put(normalized, id);
+            tokens.add(tokenSet(normalized));
+
+            long[] trigrams = trigrams(normalized);
+            counts.add(trigrams.length);
+            for (long trigram : trigrams) {
+                postingLists.computeIfAbsent(trigram, key -> new ArrayList<>()).add(id);
+            }
+        }
+
+        postings = new HashMap<>(postingLists.size() * 2);
+        postingLists.forEach((trigram, ids) -> postings.put(trigram, ids.stream().mapToInt(Integer::intValue).toArray()));
+        trigramCounts = counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public static <V> ProductNameIndex<V> of(Map<String, V> catalogue) {
+        return new ProductNameIndex<>(catalogue);
+    }
+
+    public static <V> ProductNameIndex<V> empty() {
+        return new ProductNameIndex<>(Map.of());
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * Returns the best match for the product name, or {@link Match#none()} if nothing in the catalogue shares
+     * enough with it.
+     */
+    public Match<V> find(String productName) {
+        if (productName == null || productName.isBlank()) {
+            return Match.none();
+        }
+        Match<V> match = memo.get(productName);
+        if (match == null) {
+            match = lookup(productName);
+            if (memo.size() >= MAX_MEMOIZED_QUERIES) {
+                memo.clear();
+            }
+            memo.put(productName, match);
+        }
+        return match;
+    }
+
+    private Match<V> lookup(String productName) {
+        String normalized = normalize(productName);
+        if (normalized.isEmpty()) {
+            return Match.none();
+        }
+
+        Integer exact = byNormalizedName.get(normalized);
+        if (exact != null) {
+            return match(exact, 1.0);
+        }
+
+        Set<String> queryTokens = tokenSet(normalized);
+        int ingredients = 0;
+        for (String token : queryTokens) {
+            if (!SALT_TOKENS.contains(token)) {
+                ingredients++;
+            }
+        }
+        long[] queryTrigrams = trigrams(normalized);
+        int[] shared = new int[names.size()];
+        for (long trigram : queryTrigrams) {
+            int[] ids = postings.get(trigram);
+            if (ids != null) {
+                for (int id : ids) {
+                    shared[id]++;
+                }
+            }
+        }
+
+        int containedBest = -1;
+        double containedScore = 0;
+        int bestDice = -1;
+        double bestDiceScore = 0;
+        for (int id = 0; id < shared.length; id++) {
+            if (shared[id] == 0) {
+                continue;
+            }
+            Set<String> candidateTokens = tokens.get(id);
+            if (queryTokens.containsAll(candidateTokens)) {
+                // Ingredients of the query the candidate leaves out lower its score, e.g. "Trimethoprim" only
+                // covers half of "Sulfamethoxazole/Trimethoprim"
+                int covered = 0;
+                for (String token : candidateTokens) {
+                    if (!SALT_TOKENS.contains(token)) {
+                        covered++;
+                    }
+                }
+                double score = CONTAINMENT_CONFIDENCE * Math.min(1.0, covered / (double) Math.max(1, ingredients));
+                if (score > containedScore || score == containedScore && containedBest >= 0 && candidateTokens.size() > tokens.get(containedBest).size()) {
+                    containedBest = id;
+                    containedScore = score;
+                }
+            }
+            double dice = 2.0 * shared[id] / (queryTrigrams.length + trigramCounts[id]);
+            if (dice > bestDiceScore) {
+                bestDiceScore = dice;
+                bestDice = id;
+            }
+        }
+
+        if (containedBest >= 0 && (containedScore >= CONTAINMENT_CONFIDENCE || containedScore >= bestDiceScore)) {
+            return match(containedBest, Math.max(containedScore, bestDice == containedBest ? bestDiceScore : 0));
+        }
+        return bestDice >= 0 ? match(bestDice, bestDiceScore) : Match.none();
+    }
+
+    private Match<V> match(int id, double confidence) {
+        return new Match<>(names.get(id), values.get(id), confidence);
+    }
+
+    /**
+     * Lower-cases the name, strips accents and punctuation, drops strengths, units and dosage forms, and reads
+     * "/" and "+" as "and", e.g. {@code "Amoxicillin/Clavulanic Acid 625mg Tabs"} becomes
+     * {@code "amoxicillin and enzyme inhibitor"}.
+     */
+    static String normalize(String name) {
+        String folded = Normalizer.normalize(name, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= folded.length(); i++) {
+            char c = i < folded.length() ? folded.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+                continue;
+            }
+            if (token.length() > 0) {
+                addToken(tokens, token.toString());
+                token.setLength(0);
+            }
+            if ((c == '/' || c == '+') && !tokens.isEmpty() && !AND.equals(tokens.get(tokens.size() - 1))) {
+                tokens.add(AND);
+            }
+        }
+        if (!tokens.isEmpty() && AND.equals(tokens.get(tokens.size() - 1))) {
+            tokens.remove(tokens.size() - 1);
+        }
+        return String.join(" ", tokens);
+    }
+
+    private static void addToken(List<String> tokens, String token) {
+        // Strengths such as "500", "500mg" or "1g" start with a digit
+        if (Character.isDigit(token.charAt(0)) || NOISE_TOKENS.contains(token)) {
+            return;
+        }
+        String previous = tokens.isEmpty() ? null : tokens.get(tokens.size() - 1);
+        if (ENZYME_INHIBITORS.contains(token) && AND.equals(previous)) {
+            tokens.add("enzyme");
+            tokens.add("inhibitor");
+        } else if (AND.equals(token) && (previous == null || AND.equals(previous))) {
+            return;
+        } else if (!(token.equals("acid") && "inhibitor".equals(previous))) {
+            tokens.add(token);
+        }
+    }
+
+    // The tokens of a normalized name that must be matched, leaving out "and"
+    private static Set<String> tokenSet(String normalized) {
+        Set<String> tokens = new HashSet<>(Arrays.asList(normalized.split(" ")));
+        tokens.remove(AND);
+        return tokens;
+    }
+
+    // Distinct trigrams of the name padded with spaces, each packed into a long
+    private static long[] trigrams(String normalized) {
+        String padded = "  " + normalized + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        return Arrays.stream(trigrams).distinct().toArray();
+    }
+
+    public record Match<V>(String name, V value, double confidence) {
+        private static final Match<?> NONE = new Match<>(null, null, 0);
+
+        @SuppressWarnings("unchecked")
+        public static <V> Match<V> none() {
+            return (Match<V>) NONE;
+        }
+
+        public boolean isFound() {
+            return name != null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.intellisoft.findams.reference;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable, hash-indexed snapshot of the AWaRe, DDD and top-infectious-condition reference lists. Product names
+ * are matched through a {@link ProductNameIndex}, so free-text names from FunSoft still resolve.
+ */
+@Getter
+public class ReferenceData {
+    private final long version;
+    private final Instant loadedAt;
+    private final String awareSource;
+    private final String dddSource;
+    private final Map<String, String> awareByDrugCode;
+    private final ProductNameIndex<String> awareByProductName;
+    private final ProductNameIndex<Double> dddByProductName;
+    private final IcdCodeIndex topInfectiousConditions;
+
+    public ReferenceData(long version, String awareSource, String dddSource, Map<String, String> awareByDrugCode, Map<String, String> awareByProductName, Map<String, Double> dddByProductName, IcdCodeIndex topInfectiousConditions) {
+        this.version = version;
+        this.loadedAt = Instant.now();
+        this.awareSource = awareSource;
+        this.dddSource = dddSource;
+        this.awareByDrugCode = awareByDrugCode;
+        this.awareByProductName = ProductNameIndex.of(awareByProductName);
+        this.dddByProductName = ProductNameIndex.of(dddByProductName);
+        this.topInfectiousConditions = topInfectiousConditions;
+    }
+
+    public static ReferenceData empty() {
+        return new ReferenceData(0, "none", "none", Map.of(), Map.of(), Map.of(), IcdCodeIndex.empty());
+    }
+
+    public String awareClassificationForDrugCode(String drugCode) {
+        return drugCode != null ? awareByDrugCode.get(drugCode) : null;
+    }
+
+    public ProductNameIndex.Match<String> awareClassificationForProduct(String productName) {
+        return awareByProductName.find(productName);
+    }
+
+    public ProductNameIndex.Match<Double> definedDailyDose(String productName) {
+        return dddByProductName.find(productName);
+    }
+
+    public String topInfectiousCondition(String diagnosis) {
+        return topInfectiousConditions.categorise(diagnosis);
+    }
+
+    public Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("version", version);
+        description.put("loadedAt", loadedAt.toString());
+        description.put("awareSource", awareSource);
+        description.put("dddSource", dddSource);
+        description.put("awareDrugCodes", awareByDrugCode.size());
+        description.put("awareProducts", awareByProductName.size());
+        description.put("dddProducts", dddByProductName.size());
+        description.put("topInfectiousConditions", topInfectiousConditions.size());
+        return description;
+    }
+}
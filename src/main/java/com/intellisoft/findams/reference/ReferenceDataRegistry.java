@@ -0,0 +1,241 @@
+package com.intellisoft.findams.reference;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.constants.Constants;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the reference lists under {@code tests/} once into a {@link ReferenceData} snapshot and swaps in a new
+ * snapshot whenever the mounted files change, so lookups on the hot path never touch the disk. AWaRe and DDD
+ * lists cached from the DHIS2 dataStore by {@link ReferenceDataSource} take precedence over the bundled files.
+ */
+@Slf4j
+@Component
+public class ReferenceDataRegistry {
+    private static final String AWARE_FILE = "aware.json";
+    private static final String AMU_AWARE_FILE = "amu_aware.json";
+    private static final String DDD_FILE = "ddd.json";
+    private static final String TOP_TEN_FILE = "topten.json";
+
+    // Copies of the national lists pulled from the DHIS2 dataStore by ReferenceDataSource
+    public static final String DATASTORE_AWARE_FILE = "aware-classification.json";
+    public static final String DATASTORE_DDD_FILE = "antibiotics-ddd.json";
+
+    private final ObjectMapper objectMapper;
+    private final AtomicLong versions = new AtomicLong();
+    private volatile ReferenceData referenceData = ReferenceData.empty();
+    private WatchService watchService;
+
+    @Value("${ams.reference-data.path:" + Constants.TESTS_PATH + "}")
+    private String referenceDataPath;
+
+    @Value("${ams.reference-data.cache-path:" + Constants.TESTS_PATH + "datastore/}")
+    private String cachePath;
+
+    @Value("${ams.reference-data.watch:true}")
+    private boolean watchEnabled;
+
+    // Product names matching a catalogue entry with less confidence than this are treated as unknown
+    @Value("${ams.reference-data.min-match-confidence:0.75}")
+    private double minMatchConfidence;
+
+    // Quiet period after the last change before reloading, so half-written files are not picked up
+    @Value("${ams.reference-data.reload-delay-millis:500}")
+    private long reloadDelayMillis;
+
+    public ReferenceDataRegistry(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        reload();
+        if (watchEnabled) {
+            startWatcher();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    public ReferenceData get() {
+        return referenceData;
+    }
+
+    public String awareClassificationForDrugCode(String drugCode) {
+        String classification = referenceData.awareClassificationForDrugCode(drugCode);
+        return classification != null ? classification : "Unknown";
+    }
+
+    public String awareClassificationForProduct(String productName) {
+        ProductNameIndex.Match<String> match = referenceData.awareClassificationForProduct(productName);
+        if (match.confidence() < minMatchConfidence) {
+            log.debug("No AWaRe classification for product '{}' (best match '{}', confidence {})", productName, match.name(), match.confidence());
+            return "Unknown";
+        }
+        return match.value();
+    }
+
+    public double definedDailyDose(String productName) {
+        ProductNameIndex.Match<Double> match = referenceData.definedDailyDose(productName);
+        if (match.confidence() < minMatchConfidence) {
+            log.debug("No DDD for product '{}' (best match '{}', confidence {})", productName, match.name(), match.confidence());
+            return 0.0;
+        }
+        return match.value();
+    }
+
+    public String topInfectiousCondition(String diagnosis) {
+        return referenceData.topInfectiousCondition(diagnosis);
+    }
+
+    public synchronized boolean reload() {
+        Path directory = Paths.get(referenceDataPath);
+        try {
+            Map<String, String> awareByDrugCode = new HashMap<>();
+            Map<String, String> awareByProductName = new LinkedHashMap<>();
+            JsonNode dataStoreAware = readArray(Paths.get(cachePath).resolve(DATASTORE_AWARE_FILE));
+            for (JsonNode entry : dataStoreAware) {
+                if (entry.hasNonNull("drug_code")) {
+                    awareByDrugCode.putIfAbsent(entry.path("drug_code").asText(), entry.path("aware_classification").asText());
+                }
+                if (entry.hasNonNull("name")) {
+                    awareByProductName.putIfAbsent(entry.path("name").asText(), entry.path("aware_classification").asText());
+                }
+            }
+            // Each map falls back to its bundled file on its own, as the dataStore copy may only key by drug code
+            List<String> bundled = new ArrayList<>();
+            if (awareByDrugCode.isEmpty()) {
+                bundled.add(AWARE_FILE);
+                for (JsonNode entry : readArray(directory.resolve(AWARE_FILE))) {
+                    awareByDrugCode.putIfAbsent(entry.path("drug_code").asText(), entry.path("aware_classification").asText());
+                }
+            }
+            if (awareByProductName.isEmpty()) {
+                bundled.add(AMU_AWARE_FILE);
+                for (JsonNode entry : readArray(directory.resolve(AMU_AWARE_FILE))) {
+                    awareByProductName.putIfAbsent(entry.path("name").asText(), entry.path("aware_classification").asText());
+                }
+            }
+            String awareSource = bundled.size() == 2 ? "bundled" : bundled.isEmpty() ? "dhis2-datastore" : "dhis2-datastore, bundled " + bundled.get(0);
+
+            Map<String, Double> dddByProductName = new LinkedHashMap<>();
+            String dddSource = "dhis2-datastore";
+            JsonNode dddEntries = readArray(Paths.get(cachePath).resolve(DATASTORE_DDD_FILE));
+            if (dddEntries.isEmpty()) {
+                dddSource = "bundled";
+                dddEntries = readArray(directory.resolve(DDD_FILE));
+            }
+            for (JsonNode entry : dddEntries) {
+                JsonNode name = entry.has("Name") ? entry.path("Name") : entry.path("name");
+                JsonNode ddd = entry.has("DDD") ? entry.path("DDD") : entry.path("ddd");
+                if (!name.isMissingNode()) {
+                    dddByProductName.putIfAbsent(name.asText(), ddd.asDouble());
+                }
+            }
+
+            IcdCodeIndex.Builder topInfectiousConditions = IcdCodeIndex.builder();
+            for (JsonNode entry : readArray(directory.resolve(TOP_TEN_FILE))) {
+                topInfectiousConditions.add(entry.path("icd_code").asText(null), entry.path("icd_sub_classification").asText(null), entry.path("top_infectious_condition").asText(null));
+            }
+
+            ReferenceData loaded = new ReferenceData(versions.incrementAndGet(), awareSource, dddSource, awareByDrugCode, awareByProductName, dddByProductName, topInfectiousConditions.build());
+            referenceData = loaded;
+            log.info("Loaded reference data {}", loaded.describe());
+            return true;
+        } catch (IOException e) {
+            // Keep serving the previous snapshot
+            log.error("Error loading reference data from {}: {}", directory.toAbsolutePath(), e.getMessage());
+            return false;
+        }
+    }
+
+    private JsonNode readArray(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            log.debug("Reference data file {} not found", path);
+            return objectMapper.createArrayNode();
+        }
+        JsonNode entries = objectMapper.readTree(path.toFile());
+        return entries.isArray() ? entries : objectMapper.createArrayNode();
+    }
+
+    private void startWatcher() {
+        Path directory = Paths.get(referenceDataPath);
+        if (!Files.isDirectory(directory)) {
+            log.warn("Reference data directory {} does not exist, changes will not be picked up", directory.toAbsolutePath());
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            log.error("Error watching reference data directory {}", directory.toAbsolutePath(), e);
+            return;
+        }
+
+        Thread watcher = new Thread(this::watch, "reference-data-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = drain(key);
+
+                // Wait for the writer to go quiet before reloading
+                WatchKey next;
+                while ((next = watchService.poll(reloadDelayMillis, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(next);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Reference data watcher stopped");
+        }
+    }
+
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || context != null && context.toString().endsWith(".json")) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
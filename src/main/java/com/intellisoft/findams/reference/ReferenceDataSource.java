@@ -0,0 +1,133 @@
+package com.intellisoft.findams.reference;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.constants.Constants;
+import com.intellisoft.findams.service.HttpClientService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Mirrors the national AWaRe and ATC/DDD lists from the DHIS2 dataStore into a local cache directory that
+ * {@link ReferenceDataRegistry} reads from. An entry is only downloaded again when its {@code lastUpdated}
+ * changes, and when DHIS2 cannot be reached the registry keeps serving the cached or bundled files.
+ */
+@Slf4j
+@Component
+public class ReferenceDataSource {
+    private static final String LAST_UPDATED_SUFFIX = ".lastUpdated";
+
+    private final HttpClientService httpClientService;
+    private final ReferenceDataRegistry referenceDataRegistry;
+    private final ObjectMapper objectMapper;
+
+    @Value("${ams.aware-class-url:}")
+    private String awareUrl;
+
+    @Value("${ams.atc-codes-url:}")
+    private String atcCodesUrl;
+
+    @Value("${ams.reference-data.cache-path:" + Constants.TESTS_PATH + "datastore/}")
+    private String cachePath;
+
+    @Value("${ams.reference-data.request-timeout-millis:30000}")
+    private long requestTimeoutMillis;
+
+    public ReferenceDataSource(HttpClientService httpClientService, ReferenceDataRegistry referenceDataRegistry, ObjectMapper objectMapper) {
+        this.httpClientService = httpClientService;
+        this.referenceDataRegistry = referenceDataRegistry;
+        this.objectMapper = objectMapper;
+    }
+
+    @Scheduled(initialDelayString = "${ams.reference-data.revalidate-initial-delay-millis:30000}", fixedDelayString = "${ams.reference-data.revalidate-interval-millis:3600000}")
+    public void scheduledRevalidate() {
+        revalidate().subscribe(changed -> {
+            if (changed) {
+                log.info("Reference data refreshed from the DHIS2 dataStore: {}", referenceDataRegistry.get().describe());
+            }
+        }, error -> log.error("Error revalidating reference data: {}", error.getMessage()));
+    }
+
+    /**
+     * Checks every dataStore entry against its cached copy and reloads the registry if any of them changed.
+     * Emits {@code true} when the registry was reloaded.
+     */
+    public Mono<Boolean> revalidate() {
+        Map<String, String> entries = Map.of(ReferenceDataRegistry.DATASTORE_AWARE_FILE, awareUrl, ReferenceDataRegistry.DATASTORE_DDD_FILE, atcCodesUrl);
+
+        return Flux.fromIterable(entries.entrySet())
+                .filter(entry -> !entry.getValue().isBlank())
+                .flatMap(entry -> revalidateEntry(entry.getValue(), Paths.get(cachePath).resolve(entry.getKey())))
+                .reduce(false, (changed, entryChanged) -> changed || entryChanged)
+                .publishOn(Schedulers.boundedElastic())
+                .map(changed -> changed && referenceDataRegistry.reload());
+    }
+
+    private Mono<Boolean> revalidateEntry(String url, Path cacheFile) {
+        Path lastUpdatedFile = cacheFile.resolveSibling(cacheFile.getFileName() + LAST_UPDATED_SUFFIX);
+
+        return httpClientService.fetchDataStoreMetaData(url)
+                .timeout(Duration.ofMillis(requestTimeoutMillis))
+                .map(metaData -> metaData.path("lastUpdated").asText(""))
+                .flatMap(lastUpdated -> {
+                    if (!lastUpdated.isEmpty() && lastUpdated.equals(readLastUpdated(lastUpdatedFile)) && Files.exists(cacheFile)) {
+                        return Mono.just(false);
+                    }
+                    return httpClientService.fetchDataStoreEntry(url)
+                            .timeout(Duration.ofMillis(requestTimeoutMillis))
+                            .publishOn(Schedulers.boundedElastic())
+                            .map(body -> writeCache(cacheFile, lastUpdatedFile, body, lastUpdated));
+                })
+                .onErrorResume(error -> {
+                    log.warn("Could not revalidate {} from the DHIS2 dataStore, keeping the cached copy: {}", cacheFile.getFileName(), error.getMessage());
+                    return Mono.just(false);
+                });
+    }
+
+    private boolean writeCache(Path cacheFile, Path lastUpdatedFile, String body, String lastUpdated) {
+        try {
+            JsonNode entries = objectMapper.readTree(body);
+            if (!entries.isArray() || entries.isEmpty()) {
+                log.warn("Ignoring dataStore entry for {}: expected a non-empty JSON array", cacheFile.getFileName());
+                return false;
+            }
+
+            Files.createDirectories(cacheFile.getParent());
+            writeAtomically(cacheFile, body);
+            writeAtomically(lastUpdatedFile, lastUpdated);
+            return true;
+        } catch (IOException e) {
+            log.error("Error caching dataStore entry to {}", cacheFile, e);
+            return false;
+        }
+    }
+
+    // Written next to the target and moved into place, so the registry's watcher never sees a partial file
+    private void writeAtomically(Path target, String content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.writeString(temp, content, StandardCharsets.UTF_8);
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String readLastUpdated(Path lastUpdatedFile) {
+        try {
+            return Files.exists(lastUpdatedFile) ? Files.readString(lastUpdatedFile, StandardCharsets.UTF_8).trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -1,23 +1,22 @@
 package com.intellisoft.findams.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.intellisoft.findams.constants.Constants;
+import com.intellisoft.findams.dto.DataValue;
+import com.intellisoft.findams.dto.Event;
+import com.intellisoft.findams.mapping.OptionSetIndex;
+import com.intellisoft.findams.parser.JsonArrayStreamReader;
+import com.intellisoft.findams.reference.ReferenceDataRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.util.*;
 
@@ -28,278 +27,171 @@ public class EventProgramService {
     @Autowired
     HttpClientService httpClientService;
 
+    @Autowired
+    MetadataCache metadataCache;
+
     @Autowired
     ObjectMapper objectMapper;
 
-    public void fetchFromFunSoft(String startDate, String endDate) {
+    @Autowired
+    ReferenceDataRegistry referenceDataRegistry;
+
+    /**
+     * Maps and posts the AMU and AMC events of every prescription in the date range, one patient after another.
+     * Completes with the number of patients once all their events were posted, or with the first error.
+     */
+    public Mono<Long> fetchFromFunSoft(String startDate, String endDate) {
 
         String patientId = "";
 
-        httpClientService.getPatientsAntibioticPrescriptions(patientId, startDate, endDate).subscribe(response -> {
-            try {
-                ObjectMapper objectMapper = new ObjectMapper();
-                JsonNode jsonNode = objectMapper.readTree(response);
-
-                JsonNode patients = jsonNode.path("patients");
-                for (JsonNode patient : patients) {
-                    JsonNode visits = patient.path("visits");
-                    for (JsonNode visit : visits) {
-                        List<Map<String, Object>> eventsList = new ArrayList<>();
-
-                        JsonNode antibioticPrescriptions = visit.path("antibiotic_prescriptions");
-                        for (JsonNode prescription : antibioticPrescriptions) {
-
-                            String age = visit.path("age").asText();
-                            String gender = patient.path("gender").asText();
-                            String patient_id = patient.path("patient_id").asText();
-                            String category = prescription.path("category").asText();
-                            String class_ = prescription.path("class").asText();
-                            JsonNode patientDiagnosis = visit.path("patient_diagnosis");
-                            String confirmatoryDiagnosis = patientDiagnosis.path("confirmatory_diagnosis").asText();
-                            String tentativeDiagnosis = patientDiagnosis.path("tentative_diagnosis").asText();
-                            JsonNode pharmaceuticalFormulation = prescription.path("pharmaceutical_formulation");
-                            String productName = prescription.path("product_name").asText(); //AMC/AMU
-                            String productId = prescription.path("product_id").asText(); //AMC
-                            String strength = pharmaceuticalFormulation.path("strength").asText(); //AMC
-                            String combination = pharmaceuticalFormulation.path("combination").asText(); //AMC
-                            String dosageForm = pharmaceuticalFormulation.path("dosage_form").asText(); //AMC
-                            String department = prescription.path("department").asText(); //AMC
-                            String numberOfPackagesDispensed = prescription.path("number_of_packages_being_dispensed").asText(); //AMC
-                            String dateBeingDispensed = prescription.path("date_being_dispensed").asText(); //AMC
-                            String lengthOfAdministration = prescription.path("length_of_administration").asText();
-                            String occurredAt = visit.path("visit_date").asText();
-                            String admissionDate = visit.path("admission_date").asText();
-                            String dischargeDate = visit.path("discharge_date").asText();
-                            String dispenseId = prescription.path("entry_id").asText();
-
-                            Disposable disposable = httpClientService.getAmuMetaData().subscribe(programMetaData -> {
-                                JSONObject jsonResponse = new JSONObject(programMetaData);
-                                JSONArray programsArray = jsonResponse.getJSONArray("programs");
-
-                                for (int i = 0; i < programsArray.length(); i++) {
-                                    JSONObject programObject = programsArray.getJSONObject(i);
-                                    String amuProgramId = programObject.getString("id");
-                                    JSONArray programStageDataElementsArray = programObject.getJSONArray("programStages").getJSONObject(0).getJSONArray("programStageDataElements");
-
-                                    // Fetch option sets
-                                    Mono<Map<String, Map<String, String>>> optionSetsMono = httpClientService.fetchOptionSets();
-
-                                    optionSetsMono.flatMap(optionSets -> {
-
-                                        List<Map<String, Object>> eventSpecificDataValuesList = new ArrayList<>();
-
-                                        for (int j = 0; j < programStageDataElementsArray.length(); j++) {
-                                            JSONObject programStageDataElementObject = programStageDataElementsArray.getJSONObject(j);
-                                            JSONObject dataElementObject = programStageDataElementObject.getJSONObject("dataElement");
-                                            JSONObject amuProgramStageObject = programStageDataElementObject.getJSONObject("programStage");
-                                            String amuProgramStageId = amuProgramStageObject.getString("id");
-                                            String displayName = dataElementObject.getString("displayName");
-                                            String id = dataElementObject.getString("id");
-
-
-                                            Map<String, Object> ageData = new HashMap<>();
-                                            if ("Age".equalsIgnoreCase(displayName)) {
-                                                ageData = new HashMap<>();
-                                                ageData.put("dataElement", id);
-                                                ageData.put("value", age);
-                                                eventSpecificDataValuesList.add(ageData);
-                                            }
-
-                                            Map<String, Object> genderData = new HashMap<>();
-                                            if ("Gender".equalsIgnoreCase(displayName)) {
-                                                genderData.put("dataElement", id);
-                                                Map<String, String> optionSet = optionSets.get("Gender");
-                                                if (optionSet != null) {
-                                                    String currentValue = gender;
-                                                    String mappedOptionSetValue = optionSet.entrySet().stream().filter(entry -> entry.getValue().equalsIgnoreCase(currentValue)).map(Map.Entry::getKey).findFirst().orElse(currentValue);
-                                                    genderData.put("value", mappedOptionSetValue);
-                                                } else {
-                                                    genderData.put("value", gender);
-                                                }
-                                                eventSpecificDataValuesList.add(genderData);
-                                            }
-
-                                            Map<String, Object> patientIdData = new HashMap<>();
-                                            if ("Patient IP/OP No.".equalsIgnoreCase(displayName)) {
-                                                patientIdData.put("dataElement", id);
-                                                patientIdData.put("value", patient_id);
-                                                eventSpecificDataValuesList.add(patientIdData);
-                                            }
-
-                                            //determine awareClassification:
-                                            String awareClassification = extractAwareClassification(productName);
-
-                                            Map<String, Object> categoryData = new HashMap<>();
-                                            if ("Category (AMU)".equalsIgnoreCase(displayName)) {
-                                                categoryData.put("dataElement", id);
-                                                categoryData.put("value", awareClassification);
-                                                eventSpecificDataValuesList.add(categoryData);
-                                            }
-
-                                            Map<String, Object> classData = new HashMap<>();
-                                            if ("Class".equalsIgnoreCase(displayName)) {
-                                                classData.put("dataElement", id);
-                                                classData.put("value", class_);
-                                                eventSpecificDataValuesList.add(classData);
-                                            }
-
-                                            Map<String, Object> patientDiagnosisData = new HashMap<>();
-                                            if ("Patient diagnosis (Tentative and confirmatory dx)".equalsIgnoreCase(displayName)) {
-                                                patientDiagnosisData.put("dataElement", id);
-                                                patientDiagnosisData.put("value", confirmatoryDiagnosis);
-                                                eventSpecificDataValuesList.add(patientDiagnosisData);
-                                            }
-
-                                            Map<String, Object> antiBioticDescription = new HashMap<>();
-                                            if ("Antibiotics".equalsIgnoreCase(displayName)) {
-                                                antiBioticDescription.put("dataElement", id);
-
-                                                Map<String, String> optionSet = optionSets.get("Antibiotics");
-
-                                                if (optionSet != null) {
-                                                    String currentValue = productName;
-                                                    String mappedOptionSetValue = optionSet.entrySet().stream().filter(entry -> entry.getValue().equalsIgnoreCase(currentValue)).map(Map.Entry::getKey).findFirst().orElse(currentValue);
-                                                    antiBioticDescription.put("value", mappedOptionSetValue);
-                                                } else {
-                                                    antiBioticDescription.put("value", productName);
-                                                }
-                                                eventSpecificDataValuesList.add(antiBioticDescription);
-                                            }
-
-                                            Map<String, Object> payload = new HashMap<>();
-                                            payload.put("occurredAt", occurredAt);
-                                            payload.put("completedAt", LocalDate.now().toString());
-                                            payload.put("status", "COMPLETED");
-                                            payload.put("notes", new ArrayList<>());
-                                            payload.put("program", amuProgramId);
-                                            payload.put("programStage", amuProgramStageId);
-                                            payload.put("orgUnit", Constants.FIND_AMS_ORG_UNIT);
-                                            payload.put("dataValues", eventSpecificDataValuesList);
-
-                                            eventsList.add(payload);
-                                        }
-
-                                        Map<String, Object> finalPayload = new HashMap<>();
-                                        finalPayload.put("events", eventsList);
-
-                                        String finalPayloadJson = null;
-                                        try {
-                                            finalPayloadJson = objectMapper.writeValueAsString(finalPayload);
-                                        } catch (JsonProcessingException e) {
-                                            throw new RuntimeException(e);
-                                        }
-
-                                        JsonNode finalPayloadNode = null;
-                                        try {
-                                            finalPayloadNode = objectMapper.readTree(finalPayloadJson);
-
-                                            JsonNode eventsNode = finalPayloadNode.path("events");
-
-                                            if (eventsNode.isArray()) {
-                                                Set<String> uniqueEventKeys = new HashSet<>();
-                                                List<JsonNode> uniqueEvents = new ArrayList<>();
-
-                                                for (JsonNode eventNode : eventsNode) {
-                                                    String eventKey = eventNode.toString();
-
-                                                    if (uniqueEventKeys.add(eventKey)) {
-                                                        uniqueEvents.clear();
-                                                        uniqueEvents.add(eventNode);
-                                                    }
-                                                }
-                                                ((ArrayNode) eventsNode).removeAll();
-                                                ((ArrayNode) eventsNode).addAll(uniqueEvents);
-                                            }
-                                            httpClientService.postAmuEventProgram(finalPayloadNode.toPrettyString()).subscribe(amuEventResponse -> {
-
-                                            }, error -> {
-                                                log.debug("Error occurred from DHIS2: {}", error.getMessage());
-                                            });
-
-                                            //processAmc
-                                            processAmc(startDate, endDate, confirmatoryDiagnosis, productName, productId, strength, dosageForm, department, numberOfPackagesDispensed, dateBeingDispensed, occurredAt, combination);
-
-                                        } catch (JsonProcessingException e) {
-                                            throw new RuntimeException(e);
-                                        }
-                                        return Mono.empty();
-                                    }).subscribe();
-                                }
-                            }, Throwable::printStackTrace);
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                log.error("IOException Error occurred while parsing JSON");
-            }
-        }, Throwable::printStackTrace);
-    }
+        // Patients are mapped one at a time as the response arrives, instead of reading it whole into a tree
+        return JsonArrayStreamReader.elements(httpClientService.streamPatientsAntibioticPrescriptions(patientId, startDate, endDate), "patients", objectMapper).concatMap(patient -> {
+            List<Mono<Void>> work = new ArrayList<>();
+            JsonNode visits = patient.path("visits");
+            for (JsonNode visit : visits) {
+                JsonNode antibioticPrescriptions = visit.path("antibiotic_prescriptions");
+                for (JsonNode prescription : antibioticPrescriptions) {
+
+                    String age = visit.path("age").asText();
+                    String gender = patient.path("gender").asText();
+                    String patient_id = patient.path("patient_id").asText();
+                    String category = prescription.path("category").asText();
+                    String class_ = prescription.path("class").asText();
+                    JsonNode patientDiagnosis = visit.path("patient_diagnosis");
+                    String confirmatoryDiagnosis = patientDiagnosis.path("confirmatory_diagnosis").asText();
+                    String tentativeDiagnosis = patientDiagnosis.path("tentative_diagnosis").asText();
+                    JsonNode pharmaceuticalFormulation = prescription.path("pharmaceutical_formulation");
+                    String productName = prescription.path("product_name").asText(); //AMC/AMU
+                    String productId = prescription.path("product_id").asText(); //AMC
+                    String strength = pharmaceuticalFormulation.path("strength").asText(); //AMC
+                    String combination = pharmaceuticalFormulation.path("combination").asText(); //AMC
+                    String dosageForm = pharmaceuticalFormulation.path("dosage_form").asText(); //AMC
+                    String department = prescription.path("department").asText(); //AMC
+                    String numberOfPackagesDispensed = prescription.path("number_of_packages_being_dispensed").asText(); //AMC
+                    String dateBeingDispensed = prescription.path("date_being_dispensed").asText(); //AMC
+                    String lengthOfAdministration = prescription.path("length_of_administration").asText();
+                    String occurredAt = visit.path("visit_date").asText();
+                    String admissionDate = visit.path("admission_date").asText();
+                    String dischargeDate = visit.path("discharge_date").asText();
+                    String dispenseId = prescription.path("entry_id").asText();
+
+                    work.add(metadataCache.amuProgramMetadata().flatMap(programMetaData -> {
+                        JSONObject jsonResponse = new JSONObject(programMetaData);
+                        JSONArray programsArray = jsonResponse.getJSONArray("programs");
+                        List<Mono<Void>> posts = new ArrayList<>();
+
+                        for (int i = 0; i < programsArray.length(); i++) {
+                            JSONObject programObject = programsArray.getJSONObject(i);
+                            String amuProgramId = programObject.getString("id");
+                            JSONArray programStageDataElementsArray = programObject.getJSONArray("programStages").getJSONObject(0).getJSONArray("programStageDataElements");
+
+                            // Fetch option sets
+                            Mono<OptionSetIndex> optionSetsMono = metadataCache.optionSets();
+
+                            posts.add(optionSetsMono.flatMap(optionSets -> {
+
+                                List<DataValue> eventSpecificDataValuesList = new ArrayList<>();
+                                String amuProgramStageId = null;
+
+                                //determine awareClassification:
+                                String awareClassification = referenceDataRegistry.awareClassificationForProduct(productName);
+
+                                for (int j = 0; j < programStageDataElementsArray.length(); j++) {
+                                    JSONObject programStageDataElementObject = programStageDataElementsArray.getJSONObject(j);
+                                    JSONObject dataElementObject = programStageDataElementObject.getJSONObject("dataElement");
+                                    JSONObject amuProgramStageObject = programStageDataElementObject.getJSONObject("programStage");
+                                    amuProgramStageId = amuProgramStageObject.getString("id");
+                                    String displayName = dataElementObject.getString("displayName");
+                                    String id = dataElementObject.getString("id");
+
+
+                                    if ("Age".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, age));
+                                    }
 
+                                    if ("Gender".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, optionSets.findCodeIgnoreCase("Gender", gender, gender)));
+                                    }
 
-    private String extractAwareClassification(String productName) {
-        String awareDataPath = Constants.TESTS_PATH + "amu_aware.json";
+                                    if ("Patient IP/OP No.".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, patient_id));
+                                    }
 
-        try {
-            String jsonContent = new String(Files.readAllBytes(Paths.get(awareDataPath)));
+                                    if ("Category (AMU)".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, awareClassification));
+                                    }
 
-            JSONArray jsonArray = new JSONArray(jsonContent);
+                                    if ("Class".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, class_));
+                                    }
+
+                                    if ("Patient diagnosis (Tentative and confirmatory dx)".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, confirmatoryDiagnosis));
+                                    }
+
+                                    if ("Antibiotics".equalsIgnoreCase(displayName)) {
+                                        eventSpecificDataValuesList.add(new DataValue(id, optionSets.findCodeIgnoreCase("Antibiotics", productName, productName)));
+                                    }
+                                }
 
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject entry = jsonArray.getJSONObject(i);
-                if (productName.equals(entry.getString("name"))) {
-                    return entry.getString("aware_classification");
+                                // One event per prescription, holding the values of every data element of the stage
+                                List<Event> events = amuProgramStageId != null
+                                        ? List.of(Event.trackerEvent(amuProgramId, amuProgramStageId, Constants.FIND_AMS_ORG_UNIT, occurredAt, LocalDate.now().toString(), eventSpecificDataValuesList))
+                                        : List.of();
+                                return httpClientService.postAmuEventProgram(events).doOnError(error -> {
+                                    log.debug("Error occurred from DHIS2: {}", error.getMessage());
+                                }).then(Mono.defer(() -> {
+                                    //processAmc
+                                    return processAmc(startDate, endDate, confirmatoryDiagnosis, productName, productId, strength, dosageForm, department, numberOfPackagesDispensed, dateBeingDispensed, occurredAt, combination);
+                                }));
+                            }));
+                        }
+                        return Flux.concat(posts).then();
+                    }));
                 }
             }
-
-            return "Unknown";
-        } catch (IOException e) {
-            e.printStackTrace();
-            return "ErrorReadingJsonFile";
-        }
+            return Flux.concat(work).then(Mono.just(patient));
+        }).count().doOnError(error -> log.error("Error syncing antibiotic prescriptions from FunSoft for {} to {}: {}", startDate, endDate, error.getMessage()));
     }
 
-    private double fetchDDD(String productName) {
 
-        String DDD_FILE_PATH = Constants.TESTS_PATH + "ddd.json";
-        ObjectMapper objectMapper = new ObjectMapper();
-        try {
-            JsonNode jsonNode = objectMapper.readTree(new File(DDD_FILE_PATH));
+    private Mono<Void> processAmc(String startDate, String endDate, String confirmatoryDiagnosis, String productName, String productId, String strength, String dosageForm, String department, String numberOfPackagesDispensed, String dateBeingDispensed, String occurredAt, String combination) {
 
-            for (JsonNode productNode : jsonNode) {
-                String name = productNode.get("Name").asText();
-                if (productName.equalsIgnoreCase(name)) {
-                    return productNode.get("DDD").asDouble();
-                }
-            }
+        String patientId = "";
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return 0.0;
-    }
+        return httpClientService.fetchDailyAdmissions(patientId, startDate, endDate).flatMap(response -> {
+            JsonNode admissionsData;
+            try {
+                admissionsData = objectMapper.readTree(response);
+            } catch (JsonProcessingException e) {
+                return Mono.error(e);
+            }
 
-    private void processAmc(String startDate, String endDate, String confirmatoryDiagnosis, String productName, String productId, String strength, String dosageForm, String department, String numberOfPackagesDispensed, String dateBeingDispensed, String occurredAt, String combination) {
+            // Worked out once per prescription, as they do not depend on the data element being filled
+            int totalAdmissions = totalAdmissions(admissionsData);
+            Double dailyDefinedDosage = dailyDefinedDosage(productName, strength);
 
-        String patientId = "";
+            // Determine aware:
+            String awareClassification = referenceDataRegistry.awareClassificationForProduct(productName);
 
-        httpClientService.fetchDailyAdmissions(patientId, startDate, endDate).subscribe(response -> {
+            // determine the top-infectious-condition categorization based on the diagnosis
+            String topInfectiousCondition = referenceDataRegistry.topInfectiousCondition(confirmatoryDiagnosis);
 
-            Disposable disposable = httpClientService.getAmcMetaData().subscribe(programMetaData -> {
+            return metadataCache.amcProgramMetadata().flatMap(programMetaData -> {
                 JSONObject jsonResponse = new JSONObject(programMetaData);
                 JSONArray programsArray = jsonResponse.getJSONArray("programs");
 
-                Mono<Map<String, Map<String, String>>> optionSetsMono = httpClientService.fetchOptionSets();
+                Mono<OptionSetIndex> optionSetsMono = metadataCache.optionSets();
 
-                optionSetsMono.flatMap(optionSets -> {
-                    List<Map<String, Object>> eventsList = new ArrayList<>();
-                    int totalAdmissions = 0;
+                return optionSetsMono.flatMap(optionSets -> {
+                    List<Event> eventsList = new ArrayList<>();
 
                     for (int i = 0; i < programsArray.length(); i++) {
                         JSONObject programObject = programsArray.getJSONObject(i);
                         String amcProgramId = programObject.getString("id");
                         JSONArray programStageDataElementsArray = programObject.getJSONArray("programStages").getJSONObject(0).getJSONArray("programStageDataElements");
 
-                        List<Map<String, Object>> dataValuesList = new ArrayList<>();
+                        List<DataValue> dataValuesList = new ArrayList<>();
 
                         for (int j = 0; j < programStageDataElementsArray.length(); j++) {
                             JSONObject programStageDataElementObject = programStageDataElementsArray.getJSONObject(j);
@@ -309,252 +201,106 @@ public class EventProgramService {
                             String displayName = dataElementObject.getString("displayName");
                             String amcId = dataElementObject.getString("id");
 
-                            JsonNode admissionsData = null;
-                            try {
-                                admissionsData = objectMapper.readTree(response);
-                            } catch (JsonProcessingException e) {
-                                throw new RuntimeException(e);
-                            }
-
-                            if (admissionsData != null && admissionsData.has("daily_admissions")) {
-                                JsonNode dailyAdmissions = admissionsData.path("daily_admissions");
-                                if (dailyAdmissions.isArray() && dailyAdmissions.size() > 0) {
-                                    for (int k = 0; k < dailyAdmissions.size(); k++) {
-                                        JsonNode admission = dailyAdmissions.get(k);
-                                        if (admission != null && admission.has("total_admissions")) {
-                                            totalAdmissions += admission.path("total_admissions").asInt();
-                                        } else {
-                                            log.error("Admission [{}] does not contain 'total_admissions'", k);
-                                        }
-                                    }
-                                }
-                            }
-                            // DDD computation:
-                            double dddValueResponse = fetchDDD(productName);
-
-                            Double dailyDefinedDosage = null;
-
-                            try {
-
-                                double medicalStrength;
-
-                                if (strength.equals("-") || strength.equals("") || fractionChecker.isFraction(strength)) {
-                                    medicalStrength = 0;
-                                } else {
-                                    medicalStrength = Double.parseDouble(strength);
-                                }
-                                // Converting strength to g
-                                dailyDefinedDosage = ((medicalStrength / 1000) / dddValueResponse);
-                            } catch (NumberFormatException e) {
-                                log.error("Error parsing strength as a number");
-                            }
-
-                            // Determine aware:
-                            String awareClassification = extractAwareClassification(productName);
-
-                            Map<String, Object> amcCategoryData = new HashMap<>();
                             if ("Category (AMC)".equalsIgnoreCase(displayName)) {
-                                amcCategoryData.put("dataElement", amcId);
-                                amcCategoryData.put("value", awareClassification);
-                                dataValuesList.add(amcCategoryData);
+                                dataValuesList.add(new DataValue(amcId, awareClassification));
                             }
 
-                            Map<String, Object> numberOfPackagesDispensedData = new HashMap<>();
                             if ("Number of packages being dispensed".equals(displayName)) {
-                                numberOfPackagesDispensedData.put("dataElement", amcId);
-                                numberOfPackagesDispensedData.put("value", numberOfPackagesDispensed);
-                                dataValuesList.add(numberOfPackagesDispensedData);
+                                dataValuesList.add(new DataValue(amcId, numberOfPackagesDispensed));
                             }
 
-                            Map<String, Object> dateBeingDispensedData = new HashMap<>();
                             if ("Date being dispensed".equals(displayName)) {
-                                dateBeingDispensedData.put("dataElement", amcId);
-                                dateBeingDispensedData.put("value", dateBeingDispensed);
-                                dataValuesList.add(dateBeingDispensedData);
+                                dataValuesList.add(new DataValue(amcId, dateBeingDispensed));
                             }
 
-                            Map<String, Object> combinationData = new HashMap<>();
                             if ("Combination".equals((displayName))) {
-                                combinationData.put("dataElement", amcId);
-                                combinationData.put("value", combination);
-                                dataValuesList.add(combinationData);
+                                dataValuesList.add(new DataValue(amcId, combination));
                             }
 
                             if ("Daily defined dose".equals((displayName))) {
-                                Map<String, Object> dosageData = new HashMap<>();
-                                dosageData.put("dataElement", amcId);
                                 if (dailyDefinedDosage != null && !Double.isInfinite(dailyDefinedDosage)) {
-                                    dosageData.put("value", dailyDefinedDosage.intValue());
+                                    dataValuesList.add(new DataValue(amcId, dailyDefinedDosage.intValue()));
                                 } else {
-                                    dosageData.put("value", 0.0);
+                                    dataValuesList.add(new DataValue(amcId, 0.0));
                                 }
-                                dataValuesList.add(dosageData);
                             }
 
                             if ("Dosage form".equals(displayName)) {
-                                Map<String, Object> dosageFormData = new HashMap<>();
-                                dosageFormData.put("dataElement", amcId);
-                                dosageFormData.put("value", dosageForm);
-                                dataValuesList.add(dosageFormData);
+                                dataValuesList.add(new DataValue(amcId, dosageForm));
                             }
 
 
-                            Map<String, Object> departmentData = new HashMap<>();
                             if ("Department".equals(displayName)) {
-                                departmentData.put("dataElement", amcId);
-
-                                Map<String, String> optionSet = optionSets.get("Department");
-
-                                if (optionSet != null) {
-                                    String currentValue = department;
-                                    String mappedOptionSetValue = optionSet.entrySet().stream().filter(entry -> entry.getValue().equalsIgnoreCase(currentValue)).map(Map.Entry::getKey).findFirst().orElse("UKN"); // Default to "Unknown" if not found in options
-
-                                    departmentData.put("value", mappedOptionSetValue);
-                                } else {
-                                    departmentData.put("value", "UKN"); // Unknown Department
-                                }
-
-
-                                dataValuesList.add(departmentData);
+                                dataValuesList.add(new DataValue(amcId, optionSets.findCodeIgnoreCase("Department", department, "UKN")));
                             }
 
                             if ("Unique product identifier (code)".equals(displayName)) {
-                                Map<String, Object> productIdData = new HashMap<>();
-                                productIdData.put("dataElement", amcId);
-                                productIdData.put("value", productId);
-                                dataValuesList.add(productIdData);
+                                dataValuesList.add(new DataValue(amcId, productId));
                             }
 
                             if ("Diagnosis".equals(displayName)) {
-                                Map<String, Object> diagnosisData = new HashMap<>();
-                                diagnosisData.put("dataElement", amcId);
-                                diagnosisData.put("value", confirmatoryDiagnosis);
-                                dataValuesList.add(diagnosisData);
+                                dataValuesList.add(new DataValue(amcId, confirmatoryDiagnosis));
                             }
 
-                            // determine the top-infectious-condition categorization based on the diagnosis
-                            String topInfectiousCondition = getTopInfectiousCondition(confirmatoryDiagnosis);
-
-                            Map<String, Object> topTenData = new HashMap<>();
                             if ("Top infectious conditions".equals(displayName)) {
-                                topTenData.put("dataElement", amcId);
-
-                                Map<String, String> optionSet = optionSets.get("Top infectious conditions");
-
-                                if (optionSet != null) {
-                                    String currentValue = topInfectiousCondition;
-                                    String mappedOptionSetValue = optionSet.entrySet().stream().filter(entry -> entry.getValue().equalsIgnoreCase(currentValue)).map(Map.Entry::getKey).findFirst().orElse("UKN");
-                                    topTenData.put("value", mappedOptionSetValue);
-                                } else {
-                                    topTenData.put("value", "UKN"); //Unknown
-                                }
-
-                                dataValuesList.add(topTenData);
+                                dataValuesList.add(new DataValue(amcId, optionSets.findCodeIgnoreCase("Top infectious conditions", topInfectiousCondition, "UKN")));
                             }
 
                             if ("Daily number of admissions".equals(displayName)) {
-                                Map<String, Object> totalAdmissionsData = new HashMap<>();
-                                totalAdmissionsData.put("dataElement", amcId);
-                                totalAdmissionsData.put("value", totalAdmissions);
-                                dataValuesList.add(totalAdmissionsData);
+                                dataValuesList.add(new DataValue(amcId, totalAdmissions));
                             }
 
-                            Map<String, Object> productNameMap = new HashMap<>();
                             if ("Product name".equalsIgnoreCase(displayName)) {
-                                productNameMap.put("dataElement", amcId);
-
-                                Map<String, String> optionSet = optionSets.get("Antibiotics");
-
-                                if (optionSet != null) {
-                                    String currentValue = productName;
-                                    String mappedOptionSetValue = optionSet.entrySet().stream().filter(entry -> entry.getValue().equalsIgnoreCase(currentValue)).map(Map.Entry::getKey).findFirst().orElse(currentValue);
-                                    productNameMap.put("value", mappedOptionSetValue);
-                                } else {
-                                    productNameMap.put("value", productName);
-                                }
-                                dataValuesList.add(productNameMap);
+                                dataValuesList.add(new DataValue(amcId, optionSets.findCodeIgnoreCase("Antibiotics", productName, productName)));
                             }
 
                         }
 
-                        Map<String, Object> payload = new HashMap<>();
-                        payload.put("occurredAt", occurredAt);
-                        payload.put("status", "COMPLETED");
-                        payload.put("notes", new ArrayList<>());
-                        payload.put("completedAt", LocalDate.now().toString());
-                        payload.put("program", amcProgramId);
-                        payload.put("programStage", Constants.AMC_PROGRAM_STAGE_UNIT);
-                        payload.put("orgUnit", Constants.FIND_AMS_ORG_UNIT);
-                        payload.put("dataValues", dataValuesList);
-                        eventsList.add(payload);
+                        eventsList.add(Event.trackerEvent(amcProgramId, Constants.AMC_PROGRAM_STAGE_UNIT, Constants.FIND_AMS_ORG_UNIT, occurredAt, LocalDate.now().toString(), dataValuesList));
                     }
 
-                    Map<String, Object> finalPayload = new HashMap<>();
-                    finalPayload.put("events", eventsList);
-
-                    String finalPayloadJson = null;
-
-                    try {
-                        finalPayloadJson = objectMapper.writeValueAsString(finalPayload);
-                        JsonNode finalPayloadNode = objectMapper.readTree(finalPayloadJson);
-
-                        JsonNode eventsNode = finalPayloadNode.path("events");
-
-                        if (eventsNode.isArray()) {
-                            Set<String> uniqueEventKeys = new HashSet<>();
-                            List<JsonNode> uniqueEvents = new ArrayList<>();
-
-                            for (JsonNode eventNode : eventsNode) {
-                                String eventKey = eventNode.toString();
-
-                                if (uniqueEventKeys.add(eventKey)) {
-                                    uniqueEvents.clear();
-                                    uniqueEvents.add(eventNode);
-                                }
-                            }
-
-                            ((ArrayNode) eventsNode).removeAll();
-                            ((ArrayNode) eventsNode).addAll(uniqueEvents);
-                        }
-
-                        httpClientService.postAmcEventProgram(finalPayloadNode.toPrettyString()).doOnError(error -> {
-                            log.debug("Error occurred from DHIS2: {}", error.getMessage());
-                        }).subscribe(AmcDhisResponse -> {
-                        });
-
-                    } catch (JsonProcessingException e) {
-                        log.error("Error occurred while processing JSON");
-                    }
-                    return Mono.empty();
-                }).subscribe();
-
-            }, Throwable::printStackTrace);
+                    return httpClientService.postAmcEventProgram(eventsList).doOnError(error -> {
+                        log.debug("Error occurred from DHIS2: {}", error.getMessage());
+                    }).then();
+                });
+            });
         });
 
     }
 
-    private String getTopInfectiousCondition(String confirmatoryDiagnosis) {
-        String topTenPath = Constants.TESTS_PATH + "topten.json";
+    private int totalAdmissions(JsonNode admissionsData) {
+        int totalAdmissions = 0;
+        JsonNode dailyAdmissions = admissionsData.path("daily_admissions");
+        for (int k = 0; k < dailyAdmissions.size(); k++) {
+            JsonNode admission = dailyAdmissions.get(k);
+            if (admission.has("total_admissions")) {
+                totalAdmissions += admission.path("total_admissions").asInt();
+            } else {
+                log.error("Admission [{}] does not contain 'total_admissions'", k);
+            }
+        }
+        return totalAdmissions;
+    }
 
+    // DDD computation, null when the strength is not a number
+    private Double dailyDefinedDosage(String productName, String strength) {
+        double dddValueResponse = referenceDataRegistry.definedDailyDose(productName);
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            List<Map<String, String>> jsonList = objectMapper.readValue(new File(topTenPath), new TypeReference<>() {
-            });
+            double medicalStrength;
 
-            for (Map<String, String> map : jsonList) {
-                String icdSubClassification = map.get("icd_sub_classification");
-                if (confirmatoryDiagnosis.equals(icdSubClassification)) {
-                    return map.get("top_infectious_condition");
-                }
+            if (strength.equals("-") || strength.equals("") || fractionChecker.isFraction(strength)) {
+                medicalStrength = 0;
+            } else {
+                medicalStrength = Double.parseDouble(strength);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            // Converting strength to g
+            return (medicalStrength / 1000) / dddValueResponse;
+        } catch (NumberFormatException e) {
+            log.error("Error parsing strength as a number");
+            return null;
         }
-
-        return null;
     }
 
-
     public static class fractionChecker {
         public static boolean isFraction(String input) {
             if (input == null || input.isEmpty()) {
@@ -0,0 +1,130 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 digests of the WHONET files already imported, so a file dropped or uploaded again is recognised
+ * before it is parsed. Digests are appended to a local file, one JSON line per import, and loaded into memory
+ * when the application starts.
+ */
+@Slf4j
+@Component
+public class FileHashIndex {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public record Entry(String sha256, String fileName, String batchNo, long importedAt) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+
+    @Value("${ams.whonet.hash-index-path:journal/file-hashes.jsonl}")
+    private String indexPath;
+
+    public FileHashIndex(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        Path path = Paths.get(indexPath);
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    Entry entry = objectMapper.readValue(line, Entry.class);
+                    entries.put(entry.sha256(), entry);
+                } catch (JsonProcessingException e) {
+                    log.warn("Skipping unreadable line of the file hash index {}", path.toAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error reading the file hash index {}", path.toAbsolutePath(), e);
+        }
+        log.info("Loaded {} imported file hashes", entries.size());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Streams the file through SHA-256 without holding more than one buffer of it in memory.
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public Entry find(String sha256) {
+        return entries.get(sha256);
+    }
+
+    public void record(String sha256, String fileName, String batchNo) {
+        Entry entry = new Entry(sha256, fileName, batchNo, System.currentTimeMillis());
+        entries.put(sha256, entry);
+        try {
+            append(entry);
+        } catch (IOException e) {
+            log.error("Error writing the hash of {} to the file hash index: {}", fileName, e.getMessage());
+        }
+    }
+
+    private synchronized void append(Entry entry) throws IOException {
+        if (channel == null) {
+            Path path = Paths.get(indexPath);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap((objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+}
@@ -0,0 +1,178 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Syncs a FunSoft date range as a series of windows of {@code window-days} days, up to {@code concurrency} of them
+ * at a time. The prescriptions of a window are mapped and posted in order, and every window that completes is
+ * checkpointed, so a backfill that fails part way only fetches the windows that did not complete again. Once a
+ * checkpoint exists, every run resumes from the first day not synced yet, even when asked to start later. Windows
+ * reaching today are never checkpointed, as FunSoft may still add prescriptions to them.
+ */
+@Slf4j
+@Service
+public class FunSoftSyncService {
+
+    public record Window(LocalDate start, LocalDate end) {
+    }
+
+    private final EventProgramService eventProgramService;
+    private final ObjectMapper objectMapper;
+    private final AtomicBoolean running = new AtomicBoolean();
+    // Completed windows after syncedThrough, by start date
+    private final NavigableMap<LocalDate, LocalDate> completed = new TreeMap<>();
+    private LocalDate syncedThrough;
+    private Clock clock = Clock.systemDefaultZone();
+
+    @Value("${ams.funsoft.sync.window-days:1}")
+    private int windowDays;
+
+    @Value("${ams.funsoft.sync.concurrency:2}")
+    private int concurrency;
+
+    @Value("${ams.funsoft.sync.checkpoint-path:journal/funsoft-sync.json}")
+    private String checkpointPath;
+
+    public FunSoftSyncService(EventProgramService eventProgramService, ObjectMapper objectMapper) {
+        this.eventProgramService = eventProgramService;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public synchronized void initialize() {
+        Path path = Paths.get(checkpointPath);
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+        try {
+            JsonNode checkpoint = objectMapper.readTree(path.toFile());
+            if (checkpoint.hasNonNull("syncedThrough")) {
+                syncedThrough = LocalDate.parse(checkpoint.get("syncedThrough").asText());
+            }
+            for (JsonNode window : checkpoint.path("completed")) {
+                completed.put(LocalDate.parse(window.path("start").asText()), LocalDate.parse(window.path("end").asText()));
+            }
+            log.info("FunSoft synced through {}, with {} later windows completed", syncedThrough, completed.size());
+        } catch (IOException | DateTimeParseException e) {
+            log.error("Error reading the FunSoft sync checkpoint {}, syncing the full range: {}", path.toAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /**
+     * Syncs the windows of {@code startDate} to {@code endDate} (yyyy-MM-dd, both included) that were not synced
+     * before. Completes with the number of windows synced; a run that starts while another is going is skipped.
+     */
+    public Mono<Integer> sync(String startDate, String endDate) {
+        return Mono.defer(() -> {
+            LocalDate start;
+            LocalDate end;
+            try {
+                start = LocalDate.parse(startDate);
+                end = LocalDate.parse(endDate);
+            } catch (DateTimeParseException e) {
+                return Mono.error(e);
+            }
+            // Taken when the run is subscribed, so a Mono built but never run does not block later ones
+            if (!running.compareAndSet(false, true)) {
+                log.info("A FunSoft sync is already running, skipping {} to {}", startDate, endDate);
+                return Mono.just(0);
+            }
+            List<Window> windows = pendingWindows(start, end);
+            log.info("Syncing {} FunSoft windows of {} days between {} and {}", windows.size(), windowDays, startDate, endDate);
+            return Flux.fromIterable(windows)
+                    .flatMapSequential(this::syncWindow, Math.max(1, concurrency))
+                    .filter(Boolean::booleanValue)
+                    .count()
+                    .map(Long::intValue)
+                    .doFinally(signal -> running.set(false));
+        });
+    }
+
+    synchronized List<Window> pendingWindows(LocalDate start, LocalDate end) {
+        // Once there is a checkpoint the sync resumes from it, whatever the start: the scheduler starts from the
+        // latest event posted, which a later window may have posted while an earlier one failed
+        if (syncedThrough == null) {
+            syncedThrough = start.minusDays(1);
+        }
+        // Windows are laid out from the end of the synced days, so that completed ones fold into them
+        LocalDate from = syncedThrough.plusDays(1);
+        List<Window> windows = new ArrayList<>();
+        for (LocalDate windowStart = from; !windowStart.isAfter(end); windowStart = windowStart.plusDays(Math.max(1, windowDays))) {
+            LocalDate windowEnd = windowStart.plusDays(Math.max(1, windowDays) - 1L);
+            if (windowEnd.isAfter(end)) {
+                windowEnd = end;
+            }
+            if (!windowEnd.equals(completed.get(windowStart))) {
+                windows.add(new Window(windowStart, windowEnd));
+            }
+        }
+        return windows;
+    }
+
+    // A failed window is logged and left for the next run, without stopping the others
+    private Mono<Boolean> syncWindow(Window window) {
+        return eventProgramService.fetchFromFunSoft(window.start().toString(), window.end().toString()).map(patients -> {
+            log.debug("Synced {} FunSoft patients for {} to {}", patients, window.start(), window.end());
+            if (window.end().isBefore(LocalDate.now(clock))) {
+                checkpoint(window);
+            }
+            return true;
+        }).onErrorResume(error -> {
+            log.error("FunSoft window {} to {} failed and will be synced again: {}", window.start(), window.end(), error.getMessage());
+            return Mono.just(false);
+        });
+    }
+
+    private synchronized void checkpoint(Window window) {
+        completed.put(window.start(), window.end());
+        // Completed windows that follow on from syncedThrough fold into it
+        LocalDate next = syncedThrough.plusDays(1);
+        while (completed.containsKey(next)) {
+            syncedThrough = completed.remove(next);
+            next = syncedThrough.plusDays(1);
+        }
+        save();
+    }
+
+    private void save() {
+        Path path = Paths.get(checkpointPath);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        ObjectNode checkpoint = objectMapper.createObjectNode();
+        checkpoint.put("syncedThrough", syncedThrough.toString());
+        ArrayNode windows = checkpoint.putArray("completed");
+        completed.forEach((start, end) -> windows.addObject().put("start", start.toString()).put("end", end.toString()));
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.writeString(temporary, objectMapper.writeValueAsString(checkpoint), StandardCharsets.UTF_8);
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error writing the FunSoft sync checkpoint {}: {}", path.toAbsolutePath(), e.getMessage());
+        }
+    }
+}
@@ -1,21 +1,22 @@
 package com.intellisoft.findams.service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.intellisoft.findams.dto.FileParseSummaryDto;
+import com.intellisoft.findams.mapping.OptionSetIndex;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.net.URISyntaxException;
 import java.util.*;
 
 @Slf4j
@@ -23,6 +24,7 @@ import java.util.*;
 public class HttpClientService {
     private final WebClient webClient;
     private final ObjectMapper objectMapper;
+    private final JsonPayloadWriter jsonPayloadWriter;
 
     @Value("${ams.funsoft.amu-url}")
     private String amuApiUrl;
@@ -72,15 +74,19 @@ public class HttpClientService {
     @Value("${ams.last-event-created-url}")
     private String lastEventCreatedUrl;
 
-    public HttpClientService(WebClient.Builder webClientBuilder, @Value("${whonet-data-upload-url}") String whonetDataUploadUrl, @Value("${ams.dhis.username}") String username, @Value("${ams.dhis.password}") String password, ObjectMapper objectMapper) {
+    public HttpClientService(WebClient.Builder webClientBuilder, @Value("${whonet-data-upload-url}") String whonetDataUploadUrl, @Value("${ams.dhis.username}") String username, @Value("${ams.dhis.password}") String password, ObjectMapper objectMapper, JsonPayloadWriter jsonPayloadWriter) {
         this.objectMapper = objectMapper;
+        this.jsonPayloadWriter = jsonPayloadWriter;
         this.webClient = webClientBuilder.baseUrl(whonetDataUploadUrl).defaultHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE).defaultHeader(HttpHeaders.AUTHORIZATION, "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes())).build();
     }
 
 
-    public Mono<String> getPatientsAntibioticPrescriptions(String patientId, String startDate, String endDate) {
+    /**
+     * The prescriptions response as it arrives, for parsing without holding the whole body in memory.
+     */
+    public Flux<DataBuffer> streamPatientsAntibioticPrescriptions(String patientId, String startDate, String endDate) {
         String apiUrl = amuApiUrl + "patient_id=" + patientId + "&startDate=" + startDate + "&endDate=" + endDate;
-        return webClient.get().uri(apiUrl).retrieve().bodyToMono(String.class);
+        return webClient.get().uri(apiUrl).retrieve().bodyToFlux(DataBuffer.class);
     }
 
     public Mono<String> fetchDailyAdmissions(String patientId, String startDate, String endDate) {
@@ -95,18 +101,10 @@ public class HttpClientService {
         });
     }
 
-    public Mono<String> postTrackedEntityInstances(Map<String, Object> trackedEntityInstancePayload) {
+    public Mono<String> postTrackedEntityInstances(List<?> trackedEntityInstances) {
         String apiUrl = whonetUploadUrl;
-        ObjectMapper objectMapper = new ObjectMapper();
-        String payloadJson;
-
-        try {
-            payloadJson = objectMapper.writeValueAsString(trackedEntityInstancePayload);
-        } catch (JsonProcessingException e) {
-            return Mono.just("{'error':'Failed to convert payload to JSON'}");
-        }
 
-        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(payloadJson)).exchangeToMono(response -> {
+        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(jsonPayloadWriter.arrayBody("trackedEntityInstances", trackedEntityInstances)).exchangeToMono(response -> {
             if (response.statusCode().is2xxSuccessful()) {
                 return response.bodyToMono(String.class);
             } else {
@@ -118,48 +116,73 @@ public class HttpClientService {
         });
     }
 
-    public Mono<String> postToDhis2DataStore(FileParseSummaryDto fileParseSummaryDto) throws URISyntaxException, JsonProcessingException {
+    /**
+     * Creates a new key in the dataStore namespace of the upload history. Completes with whether the key exists
+     * now, which it also does when an earlier attempt created it but its response was lost.
+     */
+    public Mono<Boolean> createDataStoreEntry(String key, String payloadJson) {
+        String apiUrl = datastoreUrl + "/" + key;
 
-        ObjectMapper objectMapper = new ObjectMapper();
-        return getFromDhis2DataStore().flatMap(existingData -> {
-            existingData.add(fileParseSummaryDto);
-            String payloadJson = null;
-            try {
-                payloadJson = objectMapper.writeValueAsString(existingData);
-
-            } catch (JsonProcessingException e) {
-                throw new RuntimeException(e);
+        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(payloadJson)).exchangeToMono(response -> {
+            if (response.statusCode().is2xxSuccessful() || response.statusCode() == HttpStatus.CONFLICT) {
+                return response.releaseBody().thenReturn(true);
             }
-
-            return updateDhis2DataStore(payloadJson);
+            return response.createException().flatMap(Mono::error);
+        }).onErrorResume(e -> {
+            log.error("Error while creating {} in the DHIS2 DataStore: {}", key, e.getMessage());
+            return Mono.just(false);
         });
     }
 
-    public Mono<List<FileParseSummaryDto>> getFromDhis2DataStore() {
+    /**
+     * Replaces the value of a key in the dataStore namespace of the upload history, creating it the first time.
+     */
+    public Mono<Boolean> saveDataStoreEntry(String key, String payloadJson) {
+        String apiUrl = datastoreUrl + "/" + key;
 
-        String apiUrl = datastoreUrl + "/keyDefaultLayoutLocked";
-        return webClient.get().uri(apiUrl).retrieve().bodyToMono(new ParameterizedTypeReference<List<FileParseSummaryDto>>() {
+        return webClient.method(HttpMethod.PUT).uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(payloadJson)).exchangeToMono(response -> {
+            if (response.statusCode() == HttpStatus.NOT_FOUND) {
+                return response.releaseBody().then(createDataStoreEntry(key, payloadJson));
+            }
+            return response.statusCode().is2xxSuccessful() ? response.releaseBody().thenReturn(true) : response.createException().flatMap(Mono::error);
         }).onErrorResume(e -> {
-            log.debug("Error while getting data from DHIS2 DataStore: {}", e.getMessage());
-            return Mono.just(Collections.emptyList());
+            log.error("Error while updating {} in the DHIS2 DataStore: {}", key, e.getMessage());
+            return Mono.just(false);
         });
     }
 
-    public Mono<String> updateDhis2DataStore(String payloadJson) {
 
-        String apiUrl = datastoreUrl + "/keyDefaultLayoutLocked";
+    /**
+     * The value of a key in the dataStore namespace of the upload history, or nothing when there is no such key.
+     */
+    public Mono<String> getDataStoreEntry(String key) {
+        String apiUrl = datastoreUrl + "/" + key;
 
-        return webClient.method(HttpMethod.PUT).uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(payloadJson)).retrieve().bodyToMono(String.class).onErrorResume(e -> {
-            log.debug("Error while updating DHIS2 DataStore: {}", e.getMessage());
-            return Mono.just("Error updating DHIS2 DataStore");
+        return webClient.get().uri(apiUrl).exchangeToMono(response -> {
+            if (response.statusCode() == HttpStatus.NOT_FOUND) {
+                return response.releaseBody().then(Mono.empty());
+            }
+            return response.statusCode().is2xxSuccessful() ? response.bodyToMono(String.class) : response.createException().flatMap(Mono::error);
         });
     }
 
+    /**
+     * The keys in the dataStore namespace of the upload history, none when the namespace does not exist yet.
+     */
+    public Mono<List<String>> getDataStoreKeys() {
+        return webClient.get().uri(datastoreUrl).exchangeToMono(response -> {
+            if (response.statusCode() == HttpStatus.NOT_FOUND) {
+                return response.releaseBody().thenReturn(List.<String>of());
+            }
+            return response.statusCode().is2xxSuccessful() ? response.bodyToMono(new ParameterizedTypeReference<List<String>>() {
+            }) : response.createException().flatMap(Mono::error);
+        });
+    }
 
-    public Mono<String> postAmuEventProgram(String finalPayload) {
+    public Mono<String> postAmuEventProgram(List<?> events) {
         String apiUrl = eventProgramUrl;
 
-        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(finalPayload)).exchangeToMono(response -> {
+        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(jsonPayloadWriter.arrayBody("events", events)).exchangeToMono(response -> {
             if (response.statusCode().is2xxSuccessful()) {
                 return response.bodyToMono(String.class);
             } else {
@@ -171,10 +194,10 @@ public class HttpClientService {
         });
     }
 
-    public Mono<String> postAmcEventProgram(String finalPayload) {
+    public Mono<String> postAmcEventProgram(List<?> events) {
         String apiUrl = eventProgramUrl;
 
-        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(BodyInserters.fromValue(finalPayload)).exchangeToMono(response -> {
+        return webClient.post().uri(apiUrl).contentType(MediaType.APPLICATION_JSON).body(jsonPayloadWriter.arrayBody("events", events)).exchangeToMono(response -> {
             if (response.statusCode().is2xxSuccessful()) {
                 return response.bodyToMono(String.class);
             } else {
@@ -186,29 +209,27 @@ public class HttpClientService {
         });
     }
 
-    public Mono<Map<String, Map<String, String>>> fetchOptionSets() {
+    public Mono<OptionSetIndex> fetchOptionSets() {
         String apiUrl = optionSetUrl;
 
         return webClient.get().uri(apiUrl).retrieve().bodyToMono(JsonNode.class).map(response -> {
-            Map<String, Map<String, String>> optionSetsMap = new HashMap<>();
+            OptionSetIndex.Builder optionSetIndex = OptionSetIndex.builder();
 
             JsonNode optionSets = response.path("optionSets");
             for (JsonNode optionSet : optionSets) {
                 String displayName = optionSet.path("displayName").asText();
                 JsonNode options = optionSet.path("options");
 
-                Map<String, String> optionsMap = new HashMap<>();
-
+                optionSetIndex.optionSet(displayName);
                 for (JsonNode option : options) {
                     String code = option.path("code").asText();
                     String name = option.path("name").asText();
 
-                    optionsMap.put(code, name);
+                    optionSetIndex.option(displayName, code, name);
                 }
-                optionSetsMap.put(displayName, optionsMap);
             }
 
-            return optionSetsMap;
+            return optionSetIndex.build();
         }).doOnError(error -> {
             log.error("Error fetching option sets.");
         });
@@ -225,6 +246,15 @@ public class HttpClientService {
         return webClient.get().uri(apiUrl).retrieve().bodyToMono(String.class);
     }
 
+    public Mono<JsonNode> fetchDataStoreMetaData(String dataStoreEntryUrl) {
+        String apiUrl = dataStoreEntryUrl + "/metaData";
+        return webClient.get().uri(apiUrl).retrieve().bodyToMono(JsonNode.class);
+    }
+
+    public Mono<String> fetchDataStoreEntry(String dataStoreEntryUrl) {
+        return webClient.get().uri(dataStoreEntryUrl).retrieve().bodyToMono(String.class);
+    }
+
     public Mono<String> fetchLastCreatedEvent() {
         String apiUrl = lastEventCreatedUrl;
         return webClient.get().uri(apiUrl).retrieve().bodyToMono(String.class);
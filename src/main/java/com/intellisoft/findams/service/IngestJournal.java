@@ -0,0 +1,183 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only record of where each WHONET file is in ingestion, one JSON line per state change, so a restart
+ * can tell files that were already posted to DHIS2 from those that have to be read again. The latest entry of
+ * every file is also kept in memory for the workers to consult. The journal is compacted to those latest entries
+ * when the application starts, leaving out the files that were archived as nothing is left to do for them, and an
+ * incomplete last line left by a crash is skipped.
+ */
+@Slf4j
+@Component
+public class IngestJournal {
+
+    public enum State {DISCOVERED, PARSED, POSTED, ARCHIVED, FAILED}
+
+    /**
+     * @param fingerprint size and modification time of the file when it was discovered, to tell a new file
+     *                    dropped under the same name from the one the entry is about
+     * @param attempts    how many times ingesting the file as fingerprinted has failed
+     */
+    public record Entry(String path, State state, String fingerprint, long at, String detail, int attempts) {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private FileChannel channel;
+
+    @Value("${ams.whonet.journal-path:journal/ingest-journal.jsonl}")
+    private String journalPath;
+
+    public IngestJournal(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        Path path = Paths.get(journalPath);
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                try {
+                    Entry entry = objectMapper.readValue(line, Entry.class);
+                    entries.put(entry.path(), entry);
+                } catch (JsonProcessingException e) {
+                    log.warn("Skipping unreadable line {} of the ingest journal {}", lines, path.toAbsolutePath());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error reading the ingest journal {}", path.toAbsolutePath(), e);
+            return;
+        }
+        int files = entries.size();
+        entries.values().removeIf(entry -> entry.state() == State.ARCHIVED);
+        compact(path);
+        log.info("Loaded {} files from the ingest journal ({} lines), {} of them archived", files, lines, files - entries.size());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public Entry get(File file) {
+        return entries.get(file.getAbsolutePath());
+    }
+
+    /**
+     * Whether the file was posted to DHIS2 but had not been archived yet, so it only has to be moved.
+     */
+    public boolean isPostedButNotArchived(File file) {
+        Entry entry = get(file);
+        return entry != null && entry.state() == State.POSTED && fingerprint(file).equals(entry.fingerprint());
+    }
+
+    /**
+     * How many times ingesting the file as it is now has failed; a changed file starts again from 0.
+     */
+    public int attempts(File file) {
+        Entry entry = get(file);
+        return entry != null && fingerprint(file).equals(entry.fingerprint()) ? entry.attempts() : 0;
+    }
+
+    public void discovered(File file) {
+        record(file, State.DISCOVERED, fingerprint(file), null);
+    }
+
+    public void parsed(File file, int rows) {
+        record(file, State.PARSED, null, rows + " rows");
+    }
+
+    public void posted(File file, String batchNo) {
+        record(file, State.POSTED, null, batchNo);
+    }
+
+    public void archived(File file) {
+        record(file, State.ARCHIVED, null, null);
+    }
+
+    public void failed(File file, String error) {
+        record(file, State.FAILED, null, error);
+    }
+
+    private void record(File file, State state, String fingerprint, String detail) {
+        String path = file.getAbsolutePath();
+        // Later states keep the fingerprint of the file as it was discovered, and its failed attempts until it changes
+        Entry entry = entries.compute(path, (key, previous) -> {
+            String current = fingerprint != null || previous == null ? fingerprint : previous.fingerprint();
+            int attempts = previous != null && Objects.equals(current, previous.fingerprint()) ? previous.attempts() : 0;
+            return new Entry(path, state, current, System.currentTimeMillis(), detail, state == State.FAILED ? attempts + 1 : attempts);
+        });
+        try {
+            append(entry);
+        } catch (IOException e) {
+            log.error("Error writing {} for {} to the ingest journal: {}", state, file.getName(), e.getMessage());
+        }
+    }
+
+    private synchronized void append(Entry entry) throws IOException {
+        if (channel == null) {
+            Path path = Paths.get(journalPath);
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        byte[] line = (objectMapper.writeValueAsString(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(line);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    // Rewrites the journal with only the latest entry of every file still in it
+    private synchronized void compact(Path path) {
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            StringBuilder content = new StringBuilder();
+            for (Entry entry : entries.values()) {
+                content.append(objectMapper.writeValueAsString(entry)).append('\n');
+            }
+            Files.writeString(compacted, content, StandardCharsets.UTF_8);
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error compacting the ingest journal {}: {}", path.toAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private static String fingerprint(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+}
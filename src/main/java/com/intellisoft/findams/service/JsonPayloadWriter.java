@@ -0,0 +1,107 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyInserter;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes outbound DHIS2 payloads of the form {@code {"<field>": [ ... ]}} straight into the request body as a
+ * stream of {@link DataBuffer}s. Elements are serialized by one shared {@link ObjectWriter} only when the
+ * connection asks for more data, so no String copy of the payload is ever built.
+ */
+@Component
+public class JsonPayloadWriter {
+    static final int BUFFER_SIZE = 32 * 1024;
+
+    private final ObjectWriter objectWriter;
+
+    public JsonPayloadWriter(ObjectMapper objectMapper) {
+        this.objectWriter = objectMapper.writer().without(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    public BodyInserter<Flux<DataBuffer>, ReactiveHttpOutputMessage> arrayBody(String fieldName, List<?> elements) {
+        return (message, context) -> message.writeWith(writeArray(fieldName, elements, message.bufferFactory()));
+    }
+
+    public Flux<DataBuffer> writeArray(String fieldName, List<?> elements, DataBufferFactory bufferFactory) {
+        return Flux.generate(State::new, (state, sink) -> {
+            DataBuffer buffer = bufferFactory.allocateBuffer(BUFFER_SIZE);
+            state.target.buffer = buffer;
+            try {
+                if (state.generator == null) {
+                    state.generator = objectWriter.createGenerator(state.target);
+                    state.generator.writeStartObject();
+                    state.generator.writeFieldName(fieldName);
+                    state.generator.writeStartArray();
+                }
+                // Fill the buffer with whole elements before handing it to the connection
+                while (state.next < elements.size() && buffer.readableByteCount() < BUFFER_SIZE) {
+                    objectWriter.writeValue(state.generator, elements.get(state.next++));
+                    state.generator.flush();
+                }
+                if (state.next == elements.size()) {
+                    state.generator.writeEndArray();
+                    state.generator.writeEndObject();
+                    state.generator.close();
+                    sink.next(buffer);
+                    sink.complete();
+                } else {
+                    sink.next(buffer);
+                }
+            } catch (IOException e) {
+                DataBufferUtils.release(buffer);
+                sink.error(e);
+            }
+            return state;
+        }, State::close);
+    }
+
+    private static final class State {
+        private final BufferOutputStream target = new BufferOutputStream();
+        private JsonGenerator generator;
+        private int next;
+
+        private void close() {
+            // Emitted buffers belong to the connection now, so anything left in the generator is dropped
+            target.buffer = null;
+            if (generator != null && !generator.isClosed()) {
+                try {
+                    generator.close();
+                } catch (IOException ignored) {
+                    // The request was cancelled, nothing is left to flush
+                }
+            }
+        }
+    }
+
+    // Lets one generator write into a new DataBuffer for every chunk it emits
+    private static final class BufferOutputStream extends OutputStream {
+        private DataBuffer buffer;
+
+        @Override
+        public void write(int b) {
+            if (buffer != null) {
+                buffer.write((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (buffer != null) {
+                buffer.write(bytes, offset, length);
+            }
+        }
+    }
+}
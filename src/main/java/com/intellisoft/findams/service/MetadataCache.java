@@ -0,0 +1,294 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.intellisoft.findams.mapping.OptionSetIndex;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * DHIS2 metadata shared by every file and every prescription, fetched once per TTL instead of once per use.
+ * Concurrent callers of an entry that is not loaded share a single request. Once the TTL has passed the cached
+ * value keeps being served while one request refreshes it in the background, for up to {@code max-stale}; after
+ * that callers wait for the refresh. A failed refresh keeps the previous value.
+ * <p>
+ * Every value fetched is also saved to a gzipped snapshot under {@code snapshot-path}. The snapshots are read in
+ * parallel at startup and served as stale values, so mapping can start without waiting for DHIS2 and goes on
+ * through short outages, while the first use of each entry revalidates it in the background.
+ */
+@Slf4j
+@Service
+public class MetadataCache {
+    public static final String TRACKED_ENTITY_ATTRIBUTES = "trackedEntityAttributes";
+    public static final String OPTION_SETS = "optionSets";
+    public static final String AMU_PROGRAM = "amuProgram";
+    public static final String AMC_PROGRAM = "amcProgram";
+
+    private final HttpClientService httpClientService;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Codec> codecs = new LinkedHashMap<>();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private Clock clock = Clock.systemUTC();
+
+    @Value("${ams.metadata.cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    @Value("${ams.metadata.cache.max-stale-seconds:86400}")
+    private long maxStaleSeconds;
+
+    // Leave blank to keep the metadata in memory only
+    @Value("${ams.metadata.cache.snapshot-path:journal/metadata}")
+    private String snapshotPath;
+
+    public MetadataCache(HttpClientService httpClientService, ObjectMapper objectMapper) {
+        this.httpClientService = httpClientService;
+        this.objectMapper = objectMapper;
+        codecs.put(TRACKED_ENTITY_ATTRIBUTES, new Codec(value -> (JsonNode) value, json -> json));
+        codecs.put(OPTION_SETS, new Codec(value -> optionSetsToJson((OptionSetIndex) value), MetadataCache::optionSetsFromJson));
+        codecs.put(AMU_PROGRAM, new Codec(value -> TextNode.valueOf((String) value), JsonNode::asText));
+        codecs.put(AMC_PROGRAM, new Codec(value -> TextNode.valueOf((String) value), JsonNode::asText));
+    }
+
+    /**
+     * Reads the snapshots of the previous run, one per entry and all at once. They count as loaded no later than
+     * a TTL ago, so the first use of each entry refreshes it from DHIS2.
+     */
+    @PostConstruct
+    public void loadSnapshots() {
+        if (!StringUtils.hasText(snapshotPath) || !Files.isDirectory(Paths.get(snapshotPath))) {
+            return;
+        }
+        long startedAt = System.nanoTime();
+        List<CompletableFuture<Boolean>> reads = new ArrayList<>();
+        for (Map.Entry<String, Codec> codec : codecs.entrySet()) {
+            reads.add(CompletableFuture.supplyAsync(() -> loadSnapshot(codec.getKey(), codec.getValue())));
+        }
+        long loaded = reads.stream().filter(CompletableFuture::join).count();
+        log.info("Loaded {} metadata snapshots in {} ms", loaded, (System.nanoTime() - startedAt) / 1_000_000);
+    }
+
+    public Mono<JsonNode> trackedEntityAttributes() {
+        return get(TRACKED_ENTITY_ATTRIBUTES, httpClientService::fetchTrackedEntityAttributes);
+    }
+
+    public Mono<OptionSetIndex> optionSets() {
+        return get(OPTION_SETS, httpClientService::fetchOptionSets);
+    }
+
+    public Mono<String> amuProgramMetadata() {
+        return get(AMU_PROGRAM, httpClientService::getAmuMetaData);
+    }
+
+    public Mono<String> amcProgramMetadata() {
+        return get(AMC_PROGRAM, httpClientService::getAmcMetaData);
+    }
+
+    /**
+     * Drops one entry, or all of them when {@code key} is null, so the next caller fetches it again.
+     *
+     * @return the number of entries dropped
+     */
+    public int invalidate(String key) {
+        if (key == null) {
+            int size = entries.size();
+            entries.clear();
+            codecs.keySet().forEach(this::deleteSnapshot);
+            log.info("Invalidated all {} cached metadata entries", size);
+            return size;
+        }
+        boolean removed = entries.remove(key) != null;
+        deleteSnapshot(key);
+        log.info("Invalidated cached metadata {}: {}", key, removed);
+        return removed ? 1 : 0;
+    }
+
+    public Map<String, Object> describe() {
+        Map<String, Object> description = new TreeMap<>();
+        long now = clock.millis();
+        entries.forEach((key, entry) -> {
+            Map<String, Object> state = new LinkedHashMap<>();
+            synchronized (entry) {
+                state.put("loaded", entry.value != null);
+                state.put("ageSeconds", entry.value != null ? (now - entry.loadedAt) / 1000 : null);
+                state.put("loads", entry.loads);
+                state.put("refreshing", entry.inFlight != null);
+            }
+            description.put(key, state);
+        });
+        return description;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> Mono<T> get(String key, Supplier<Mono<T>> loader) {
+        return Mono.defer(() -> {
+            Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+            CompletableFuture<Object> flight;
+            synchronized (entry) {
+                long age = clock.millis() - entry.loadedAt;
+                if (entry.value != null && age < Duration.ofSeconds(ttlSeconds).toMillis()) {
+                    return Mono.just((T) entry.value);
+                }
+                flight = entry.inFlight != null ? entry.inFlight : load(key, entry, (Supplier<Mono<Object>>) (Supplier<?>) loader);
+                if (entry.value != null && age < Duration.ofSeconds(ttlSeconds + maxStaleSeconds).toMillis()) {
+                    return Mono.just((T) entry.value);
+                }
+            }
+            // Cancelling one caller must not cancel the request the others are waiting on
+            return Mono.fromFuture(flight, true).map(value -> (T) value);
+        });
+    }
+
+    // Called holding the entry's lock
+    private CompletableFuture<Object> load(String key, Entry entry, Supplier<Mono<Object>> loader) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        entry.inFlight = flight;
+        loader.get().subscribe(value -> {
+            synchronized (entry) {
+                entry.value = value;
+                entry.loadedAt = clock.millis();
+                entry.loads++;
+                clear(entry, flight);
+            }
+            flight.complete(value);
+            CompletableFuture.runAsync(() -> saveSnapshot(key, value));
+        }, error -> {
+            synchronized (entry) {
+                clear(entry, flight);
+            }
+            if (entry.value != null) {
+                log.warn("Could not refresh cached metadata {}, keeping the previous copy: {}", key, error.getMessage());
+            }
+            flight.completeExceptionally(error);
+        }, () -> {
+            // Completed without a value
+            synchronized (entry) {
+                clear(entry, flight);
+            }
+            if (!flight.isDone()) {
+                flight.completeExceptionally(new IllegalStateException("No " + key + " metadata returned"));
+            }
+        });
+        return flight;
+    }
+
+    private boolean loadSnapshot(String key, Codec codec) {
+        Path path = snapshotFile(key);
+        if (!Files.isRegularFile(path)) {
+            return false;
+        }
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(path), 64 * 1024)) {
+            JsonNode snapshot = objectMapper.readTree(input);
+            Object value = codec.fromJson().apply(snapshot.path("value"));
+            long savedAt = snapshot.path("savedAt").asLong();
+            Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+            synchronized (entry) {
+                if (entry.value == null) {
+                    entry.value = value;
+                    entry.loadedAt = Math.min(savedAt, clock.millis() - Duration.ofSeconds(ttlSeconds).toMillis());
+                }
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring the metadata snapshot {}: {}", path.toAbsolutePath(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void saveSnapshot(String key, Object value) {
+        Codec codec = codecs.get(key);
+        if (codec == null || !StringUtils.hasText(snapshotPath)) {
+            return;
+        }
+        Path path = snapshotFile(key);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(path.getParent());
+            ObjectNode snapshot = objectMapper.createObjectNode();
+            snapshot.put("savedAt", clock.millis());
+            snapshot.set("value", codec.toJson().apply(value));
+            try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(temporary), 64 * 1024)) {
+                objectMapper.writeValue(output, snapshot);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            log.error("Error saving the metadata snapshot {}: {}", path.toAbsolutePath(), e.getMessage());
+        }
+    }
+
+    private void deleteSnapshot(String key) {
+        if (!StringUtils.hasText(snapshotPath)) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(snapshotFile(key));
+        } catch (IOException e) {
+            log.error("Error deleting the metadata snapshot of {}: {}", key, e.getMessage());
+        }
+    }
+
+    private Path snapshotFile(String key) {
+        return Paths.get(snapshotPath).resolve(key + ".json.gz");
+    }
+
+    private JsonNode optionSetsToJson(OptionSetIndex optionSets) {
+        ObjectNode json = objectMapper.createObjectNode();
+        for (String name : optionSets.names()) {
+            ObjectNode options = json.putObject(name);
+            optionSets.get(name).getCodeByName().forEach(options::put);
+        }
+        return json;
+    }
+
+    private static OptionSetIndex optionSetsFromJson(JsonNode json) {
+        OptionSetIndex.Builder builder = OptionSetIndex.builder();
+        json.fields().forEachRemaining(optionSet -> {
+            builder.optionSet(optionSet.getKey());
+            optionSet.getValue().fields().forEachRemaining(option -> builder.option(optionSet.getKey(), option.getValue().asText(), option.getKey()));
+        });
+        return builder.build();
+    }
+
+    // How an entry is written to and read from its snapshot
+    private record Codec(Function<Object, JsonNode> toJson, Function<JsonNode, Object> fromJson) {
+    }
+
+    private static void clear(Entry entry, CompletableFuture<Object> flight) {
+        if (entry.inFlight == flight) {
+            entry.inFlight = null;
+        }
+    }
+
+    private static final class Entry {
+        private Object value;
+        private long loadedAt;
+        private int loads;
+        private CompletableFuture<Object> inFlight;
+    }
+}
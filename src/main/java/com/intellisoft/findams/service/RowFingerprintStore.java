@@ -0,0 +1,352 @@
+package com.intellisoft.findams.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fingerprints of the WHONET rows already posted to DHIS2, so cumulative exports only send the rows that are new
+ * or changed since the last import. Each row is stored as a pair of 64-bit hashes (isolate key and content) in
+ * an append-only file of 16-byte records, and held in memory in an open-addressing table behind a Bloom filter
+ * that answers most lookups for new rows without probing the table.
+ */
+@Slf4j
+@Component
+public class RowFingerprintStore {
+    private static final int RECORD_SIZE = 16;
+
+    private final FingerprintTable table = new FingerprintTable();
+    private BloomFilter bloomFilter = new BloomFilter(0);
+    private FileChannel channel;
+    private long storedRecords;
+
+    @Value("${ams.whonet.row-fingerprint-path:journal/row-fingerprints.bin}")
+    private String storePath;
+
+    @PostConstruct
+    public synchronized void initialize() {
+        Path path = Paths.get(storePath);
+        if (Files.isRegularFile(path)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+                while (true) {
+                    long key = input.readLong();
+                    table.put(key, input.readLong());
+                    storedRecords++;
+                }
+            } catch (EOFException e) {
+                // End of the file, or an incomplete record written during a crash
+            } catch (IOException e) {
+                log.error("Error reading row fingerprints from {}", path.toAbsolutePath(), e);
+            }
+            // Records superseded by later versions of the same row are dropped
+            if (storedRecords > table.size() * 2L) {
+                compact(path);
+            }
+            log.info("Loaded {} row fingerprints", table.size());
+        }
+        bloomFilter = BloomFilter.rebuild(table);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Starts collecting the fingerprints of one file. When {@code filter} is off every row is reported as new,
+     * but the fingerprints are still recorded on commit.
+     */
+    public Delta begin(boolean filter) {
+        return new Delta(filter);
+    }
+
+    public synchronized int size() {
+        return table.size();
+    }
+
+    private synchronized boolean isUnchanged(long key, long content) {
+        return bloomFilter.mightContain(key) && table.containsEntry(key, content);
+    }
+
+    /**
+     * Records the fingerprints of a file once its rows were posted.
+     */
+    public void commit(Delta delta) {
+        commit(delta, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Records the fingerprints of {@code size} rows sent, from the {@code offset}-th one on, once DHIS2 accepted
+     * them. Rows are counted in the order {@link Delta#isNewOrChanged} reported them as new or changed.
+     */
+    public void commit(Delta delta, long offset, int size) {
+        long[] keys;
+        long[] contents;
+        // Copied before taking the store's lock, as the delta takes it when still answering lookups
+        synchronized (delta) {
+            int from = (int) Math.min(offset, delta.count);
+            int to = (int) Math.min(offset + size, delta.count);
+            keys = Arrays.copyOfRange(delta.keys, from, to);
+            contents = Arrays.copyOfRange(delta.contents, from, to);
+        }
+        if (keys.length > 0) {
+            commit(keys, contents);
+        }
+    }
+
+    private synchronized void commit(long[] keys, long[] contents) {
+        int count = keys.length;
+        ByteBuffer buffer = ByteBuffer.allocate(count * RECORD_SIZE);
+        for (int i = 0; i < count; i++) {
+            table.put(keys[i], contents[i]);
+            buffer.putLong(keys[i]).putLong(contents[i]);
+        }
+        if (table.size() > bloomFilter.capacity) {
+            bloomFilter = BloomFilter.rebuild(table);
+        } else {
+            for (int i = 0; i < count; i++) {
+                bloomFilter.add(keys[i]);
+            }
+        }
+        try {
+            if (channel == null) {
+                Path path = Paths.get(storePath);
+                if (path.getParent() != null) {
+                    Files.createDirectories(path.getParent());
+                }
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            storedRecords += count;
+        } catch (IOException e) {
+            log.error("Error writing row fingerprints to {}: {}", storePath, e.getMessage());
+        }
+    }
+
+    private void compact(Path path) {
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted), 64 * 1024))) {
+            table.forEach((key, content) -> {
+                output.writeLong(key);
+                output.writeLong(content);
+            });
+        } catch (IOException e) {
+            log.error("Error compacting row fingerprints in {}: {}", path.toAbsolutePath(), e.getMessage());
+            return;
+        }
+        try {
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            storedRecords = table.size();
+        } catch (IOException e) {
+            log.error("Error compacting row fingerprints in {}: {}", path.toAbsolutePath(), e.getMessage());
+        }
+    }
+
+    /**
+     * The rows of one file: answers whether each row has to be sent, and keeps the fingerprints of those that
+     * are for {@link #commit(Delta)}.
+     */
+    public final class Delta {
+        private final boolean filter;
+        private long[] keys = new long[1024];
+        private long[] contents = new long[1024];
+        private int count;
+        private int unchanged;
+        private final FingerprintTable occurrences = new FingerprintTable();
+
+        private Delta(boolean filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * The key of the next row with this {@link WhonetRowFingerprint} key. Rows sharing a key within a file, such
+         * as one isolate exported twice, are told apart by their order in it, as the normalizer does with repeated
+         * SPEC_NUMs; otherwise each would overwrite the other's content and uid. Call once per row, in file order.
+         */
+        public synchronized long rowKey(long key) {
+            long occurrence = occurrences.get(key);
+            occurrences.put(key, occurrence + 1);
+            return occurrence > 0 ? occurrenceKey(key, occurrence) : key;
+        }
+
+        // Takes the key returned by rowKey
+        public synchronized boolean isNewOrChanged(long key, long content) {
+            if (filter && isUnchanged(key, content)) {
+                unchanged++;
+                return false;
+            }
+            // Only rows that are sent need recording, the others are in the store already
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                contents = Arrays.copyOf(contents, count * 2);
+            }
+            keys[count] = key;
+            contents[count] = content;
+            count++;
+            return true;
+        }
+
+        public synchronized int getUnchangedCount() {
+            return unchanged;
+        }
+
+        private static long occurrenceKey(long key, long occurrence) {
+            long hash = key + occurrence * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+
+    private interface EntryConsumer {
+        void accept(long key, long content) throws IOException;
+    }
+
+    // Open-addressing long to long table; key 0 marks a free slot, so a zero key is stored as 1
+    private static final class FingerprintTable {
+        private long[] keys = new long[1 << 12];
+        private long[] contents = new long[1 << 12];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        void put(long key, long content) {
+            if ((size + 1) * 4L > keys.length * 3L) {
+                resize();
+            }
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            int slot = (int) key & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                size++;
+            }
+            contents[slot] = content;
+        }
+
+        // The content stored for the key, or 0 when there is none
+        long get(long key) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            int slot = (int) key & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return contents[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return 0;
+        }
+
+        boolean containsEntry(long key, long content) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            int slot = (int) key & mask;
+            while (keys[slot] != 0) {
+                if (keys[slot] == key) {
+                    return contents[slot] == content;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        void forEach(EntryConsumer consumer) throws IOException {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != 0) {
+                    consumer.accept(keys[slot], contents[slot]);
+                }
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldContents = contents;
+            keys = new long[oldKeys.length * 2];
+            contents = new long[oldContents.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] != 0) {
+                    put(oldKeys[slot], oldContents[slot]);
+                }
+            }
+        }
+    }
+
+    // About 1% false positives at capacity, with 10 bits and 7 probes per key
+    private static final class BloomFilter {
+        private static final int BITS_PER_KEY = 10;
+        private static final int PROBES = 7;
+
+        private final long[] bits;
+        private final long bitCount;
+        private final int capacity;
+
+        private BloomFilter(int capacity) {
+            this.capacity = capacity;
+            this.bitCount = Math.max(64, (long) capacity * BITS_PER_KEY);
+            this.bits = new long[(int) ((bitCount + 63) / 64)];
+        }
+
+        static BloomFilter rebuild(FingerprintTable table) {
+            BloomFilter filter = new BloomFilter(Math.max(1 << 16, table.size() * 2));
+            try {
+                table.forEach((key, content) -> filter.add(key));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return filter;
+        }
+
+        void add(long key) {
+            long hash1 = key;
+            long hash2 = (key >>> 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        boolean mightContain(long key) {
+            long hash1 = key;
+            long hash2 = (key >>> 32) | 1;
+            for (int i = 0; i < PROBES; i++) {
+                long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+                if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
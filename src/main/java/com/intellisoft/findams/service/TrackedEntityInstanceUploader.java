@@ -0,0 +1,233 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import com.intellisoft.findams.dto.IngestJob;
+import com.intellisoft.findams.dto.TrackedEntityInstance;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Posts tracked entity instances to DHIS2 in chunks instead of one request per file. While one chunk is in
+ * flight the next one is already being mapped, at most {@code concurrency} requests run at the same time, and
+ * the per-chunk import summaries are merged into a single {@link FileParseSummaryDto}. A failed chunk is
+ * recorded in the summary rather than failing the whole file. Each chunk's result is also reported to the
+ * {@link IngestJob} as soon as it is known. Each chunk is serialized straight into the
+ * request body by {@link JsonPayloadWriter}. DHIS2's import summary of each record tells which records it
+ * rejected; those are counted in {@code rejectedRecords} and the rest of the chunk is accepted. A chunk counts as
+ * failed as a whole when its request fails, or when DHIS2 answers with an ERROR status or ignores records without
+ * saying which. Only the accepted records are reported to the {@link ChunkListener}.
+ */
+@Slf4j
+@Service
+public class TrackedEntityInstanceUploader {
+    private static final String STATUS_ERROR = "ERROR";
+
+    /**
+     * Told of every run of records DHIS2 accepted, by the position of its first instance in the uploaded stream.
+     */
+    public interface ChunkListener {
+        void accepted(long offset, int size);
+    }
+
+    private final HttpClientService httpClientService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${ams.whonet.upload.batch-size:500}")
+    private int batchSize;
+
+    @Value("${ams.whonet.upload.concurrency:2}")
+    private int concurrency;
+
+    public TrackedEntityInstanceUploader(HttpClientService httpClientService, ObjectMapper objectMapper) {
+        this.httpClientService = httpClientService;
+        this.objectMapper = objectMapper;
+    }
+
+    public Mono<FileParseSummaryDto> upload(Flux<TrackedEntityInstance> trackedEntityInstances, IngestJob job) {
+        return upload(trackedEntityInstances, job, (offset, size) -> {
+        });
+    }
+
+    public Mono<FileParseSummaryDto> upload(Flux<TrackedEntityInstance> trackedEntityInstances, IngestJob job, ChunkListener listener) {
+        int chunkSize = Math.max(1, batchSize);
+        return trackedEntityInstances
+                .buffer(chunkSize)
+                .index()
+                .map(chunk -> new Chunk(chunk.getT1() + 1, chunk.getT1() * chunkSize, chunk.getT2()))
+                // Reading and mapping stays off the HTTP threads
+                .subscribeOn(Schedulers.boundedElastic())
+                // Keep one mapped chunk waiting behind those in flight
+                .publishOn(Schedulers.boundedElastic(), 1)
+                .flatMapSequential(chunk -> post(chunk).doOnNext(result -> {
+                    reportAccepted(chunk, result, listener);
+                    job.chunkPosted(result.summary());
+                }), Math.max(1, concurrency), 1)
+                .map(ChunkResult::summary)
+                .reduceWith(TrackedEntityInstanceUploader::emptySummary, this::merge);
+    }
+
+    private Mono<ChunkResult> post(Chunk chunk) {
+        return httpClientService.postTrackedEntityInstances(chunk.trackedEntityInstances)
+                .map(response -> parseImportSummary(chunk, response))
+                .onErrorResume(error -> {
+                    log.error("Error posting tracked entity instance chunk {} ({} records): {}", chunk.number(), chunk.size(), error.getMessage());
+                    return Mono.just(new ChunkResult(failedChunk(chunk, error.getMessage()), null));
+                });
+    }
+
+    // Reports the runs of records between the rejected ones, or nothing if the whole chunk failed
+    private static void reportAccepted(Chunk chunk, ChunkResult result, ChunkListener listener) {
+        if (result.summary().getFailedChunks() > 0) {
+            return;
+        }
+        int start = 0;
+        for (int i = 0; i <= chunk.size(); i++) {
+            if (i == chunk.size() || result.rejected() != null && result.rejected()[i]) {
+                if (i > start) {
+                    listener.accepted(chunk.offset() + start, i - start);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    private ChunkResult parseImportSummary(Chunk chunk, String response) {
+        try {
+            JsonNode root = objectMapper.readTree(response);
+            JsonNode responseNode = root.path("response");
+
+            FileParseSummaryDto summary = emptySummary();
+            summary.setChunks(1);
+            summary.setResponseType(responseNode.path("responseType").asText());
+            // Error responses (409 and the like) may only carry the status at the top level
+            summary.setStatus(worstStatus(responseNode.path("status").asText(), root.path("status").asText()));
+            summary.setImported(responseNode.path("imported").asInt());
+            summary.setUpdated(responseNode.path("updated").asInt());
+            summary.setIgnored(responseNode.path("ignored").asInt());
+            summary.setDeleted(responseNode.path("deleted").asInt());
+
+            JsonNode importSummaries = responseNode.path("importSummaries");
+            for (JsonNode summaryNode : importSummaries) {
+                for (JsonNode conflict : summaryNode.path("conflicts")) {
+                    summary.getConflictValues().add(conflict.path("value").asText());
+                }
+            }
+            log.info("Chunk {} ({} records): {} imported, {} updated, {} ignored", chunk.number(), chunk.size(), summary.getImported(), summary.getUpdated(), summary.getIgnored());
+            boolean[] rejected = rejectedRecords(chunk, importSummaries);
+            int rejectedCount = 0;
+            for (int i = 0; rejected != null && i < rejected.length; i++) {
+                rejectedCount += rejected[i] ? 1 : 0;
+            }
+            summary.setRejectedRecords(rejectedCount);
+            // Without a summary per record the whole chunk is sent again, once the data or metadata is fixed
+            if ((STATUS_ERROR.equals(summary.getStatus()) || summary.getIgnored() > 0) && rejectedCount == 0) {
+                summary.setFailedChunks(1);
+            }
+            return new ChunkResult(summary, rejected);
+        } catch (JsonProcessingException e) {
+            log.error("Error while processing import summaries of chunk {}: {}", chunk.number(), response);
+            return new ChunkResult(failedChunk(chunk, "unreadable import summary"), null);
+        }
+    }
+
+    /**
+     * Which records of the chunk DHIS2 rejected, matching each import summary to its record by the uid it
+     * references, or else by position. Null when there is not one summary per record.
+     */
+    private static boolean[] rejectedRecords(Chunk chunk, JsonNode importSummaries) {
+        if (importSummaries.size() != chunk.size()) {
+            return null;
+        }
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            String uid = chunk.trackedEntityInstances().get(i).trackedEntityInstance();
+            if (uid != null) {
+                positions.put(uid, i);
+            }
+        }
+        boolean[] rejected = new boolean[chunk.size()];
+        int position = 0;
+        for (JsonNode importSummary : importSummaries) {
+            int index = positions.getOrDefault(importSummary.path("reference").asText(), position);
+            rejected[index] |= STATUS_ERROR.equals(importSummary.path("status").asText());
+            position++;
+        }
+        return rejected;
+    }
+
+    private FileParseSummaryDto failedChunk(Chunk chunk, String reason) {
+        FileParseSummaryDto summary = emptySummary();
+        summary.setChunks(1);
+        summary.setFailedChunks(1);
+        summary.setStatus(STATUS_ERROR);
+        summary.setIgnored(chunk.size());
+        summary.getConflictValues().add("Chunk " + chunk.number() + " (" + chunk.size() + " records) " + reason);
+        return summary;
+    }
+
+    private FileParseSummaryDto merge(FileParseSummaryDto total, FileParseSummaryDto chunk) {
+        if (total.getResponseType() == null) {
+            total.setResponseType(chunk.getResponseType());
+        }
+        total.setStatus(worstStatus(total.getStatus(), chunk.getStatus()));
+        total.setImported(total.getImported() + chunk.getImported());
+        total.setUpdated(total.getUpdated() + chunk.getUpdated());
+        total.setDeleted(total.getDeleted() + chunk.getDeleted());
+        total.setIgnored(total.getIgnored() + chunk.getIgnored());
+        total.setChunks(total.getChunks() + chunk.getChunks());
+        total.setFailedChunks(total.getFailedChunks() + chunk.getFailedChunks());
+        total.setRejectedRecords(total.getRejectedRecords() + chunk.getRejectedRecords());
+        total.getConflictValues().addAll(chunk.getConflictValues());
+        return total;
+    }
+
+    // DHIS2 reports SUCCESS, WARNING or ERROR per request; the file takes the worst of its chunks
+    private static String worstStatus(String current, String next) {
+        return rank(next) > rank(current) ? next : current;
+    }
+
+    private static int rank(String status) {
+        if (status == null || status.isEmpty()) {
+            return 0;
+        }
+        switch (status) {
+            case "SUCCESS":
+            case "OK":
+                return 1;
+            case "WARNING":
+                return 2;
+            case STATUS_ERROR:
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    private static FileParseSummaryDto emptySummary() {
+        FileParseSummaryDto summary = new FileParseSummaryDto();
+        summary.setConflictValues(new ArrayList<>());
+        return summary;
+    }
+
+    // The summary of a chunk and which of its records DHIS2 rejected, null if it did not say
+    private record ChunkResult(FileParseSummaryDto summary, boolean[] rejected) {
+    }
+
+    private record Chunk(long number, long offset, List<TrackedEntityInstance> trackedEntityInstances) {
+        int size() {
+            return trackedEntityInstances.size();
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * History of the WHONET uploads. Each summary is written to its own DHIS2 dataStore key, named by upload month
+ * and batch, and a small index key keeps the number of uploads per month, so an upload costs the same whatever the
+ * size of the history. A local JSON lines mirror, of which only the line offsets are held in memory, answers the
+ * paginated history queries without going to DHIS2.
+ * <p>
+ * The lines whose key was created are listed in a {@code .published} file next to the mirror. Those that are not,
+ * because DHIS2 could not be reached, are sent again after the next upload and on every reconcile scan, and the
+ * index only counts the summaries that were published.
+ * <p>
+ * When there is no mirror at startup, as on the first start after an upgrade or on a new server, it is seeded once
+ * from DHIS2: from the single {@value #LEGACY_HISTORY_KEY} key the history used to be kept in, and from the upload
+ * keys already in the namespace. Uploads recorded before seeding completes are kept after the seeded ones.
+ */
+@Slf4j
+@Component
+public class UploadHistoryStore {
+
+    /**
+     * One page of the history, newest upload first.
+     */
+    public record Page(int page, int size, int total, List<FileParseSummaryDto> items) {
+    }
+
+    static final String LEGACY_HISTORY_KEY = "keyDefaultLayoutLocked";
+
+    private final HttpClientService httpClientService;
+    private final ObjectMapper objectMapper;
+    private final Map<String, Integer> months = new TreeMap<>();
+    private final AtomicBoolean publishing = new AtomicBoolean();
+    private final AtomicBoolean seeding = new AtomicBoolean();
+    // Set until the mirror was seeded from DHIS2; a .seeding file keeps it across restarts once the mirror exists
+    private volatile boolean seedPending;
+    private volatile boolean indexChanged;
+    // The last index update failed, so the next publishPending sends it again
+    private volatile boolean indexStale;
+    // Start of every line in the mirror, followed by the end of the last one
+    private long[] offsets = new long[1024];
+    private int count;
+    // Lines whose dataStore key was created, and those being sent
+    private final BitSet published = new BitSet();
+    private final BitSet sending = new BitSet();
+    private int publishedTotal;
+    private int latestPublishedLine = -1;
+    private String latestBatchNo;
+    private FileChannel channel;
+    private FileChannel publishedChannel;
+
+    @Value("${ams.whonet.history.path:journal/upload-history.jsonl}")
+    private String historyPath;
+
+    @Value("${ams.whonet.history.key-prefix:upload-}")
+    private String keyPrefix;
+
+    @Value("${ams.whonet.history.index-key:upload-history-index}")
+    private String indexKey;
+
+    public UploadHistoryStore(HttpClientService httpClientService, ObjectMapper objectMapper) {
+        this.httpClientService = httpClientService;
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        load();
+        if (seedPending) {
+            seed();
+        }
+    }
+
+    private synchronized void load() {
+        Path path = Paths.get(historyPath);
+        seedPending = !Files.isRegularFile(path) || Files.isRegularFile(seedingPath());
+        if (!Files.isRegularFile(path)) {
+            return;
+        }
+        long position = 0;
+        long lineStart = 0;
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(path), 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        addLine(lineStart, position + i + 1);
+                        lineStart = position + i + 1;
+                    }
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            log.error("Error reading the upload history {}", path.toAbsolutePath(), e);
+            return;
+        }
+        // An incomplete last line left by a crash is dropped so the next summary starts on a line of its own
+        if (lineStart < position) {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.truncate(lineStart);
+            } catch (IOException e) {
+                log.error("Error truncating the upload history {}: {}", path.toAbsolutePath(), e.getMessage());
+            }
+        }
+        Path publishedPath = publishedPath();
+        if (Files.isRegularFile(publishedPath)) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(publishedPath)))) {
+                while (true) {
+                    int line = input.readInt();
+                    if (line < count) {
+                        published.set(line);
+                    }
+                }
+            } catch (EOFException e) {
+                // End of the file, or an incomplete marker written during a crash
+            } catch (IOException e) {
+                log.error("Error reading the published uploads {}", publishedPath.toAbsolutePath(), e);
+            }
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int i = published.nextSetBit(0); i >= 0; i = published.nextSetBit(i + 1)) {
+                FileParseSummaryDto summary = read(file, i);
+                if (summary != null) {
+                    countPublished(i, summary);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error reading the upload history {}", path.toAbsolutePath(), e);
+        }
+        log.info("Loaded {} uploads from the upload history, {} of them still to be published", count, count - published.cardinality());
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (publishedChannel != null) {
+            publishedChannel.close();
+            publishedChannel = null;
+        }
+    }
+
+    /**
+     * Adds the summary of an upload to the local mirror, then to its own dataStore key and to the index.
+     */
+    public void record(FileParseSummaryDto summary) {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(summary);
+        } catch (JsonProcessingException e) {
+            log.error("Error serializing the summary of {}: {}", summary.getFileName(), e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            try {
+                append(json);
+            } catch (IOException e) {
+                log.error("Error writing the summary of {} to the upload history: {}", summary.getFileName(), e.getMessage());
+                return;
+            }
+        }
+        publishPending();
+    }
+
+    /**
+     * Creates the dataStore keys of the summaries that were not published yet, oldest first, then updates the
+     * index if any of them were.
+     */
+    public void publishPending() {
+        // Line numbers change when the seeded history is put in front, so nothing is sent before that
+        if (seedPending) {
+            seed();
+            return;
+        }
+        List<Integer> lines = new ArrayList<>();
+        synchronized (this) {
+            for (int line = published.nextClearBit(0); line < count; line = published.nextClearBit(line + 1)) {
+                if (!sending.get(line)) {
+                    sending.set(line);
+                    lines.add(line);
+                }
+            }
+        }
+        if (lines.isEmpty()) {
+            if (indexStale) {
+                publishIndex();
+            }
+            return;
+        }
+        Flux.fromIterable(lines)
+                .concatMap(line -> publish(line).doFinally(signal -> {
+                    synchronized (this) {
+                        sending.clear(line);
+                    }
+                }))
+                .filter(Boolean::booleanValue)
+                .count()
+                .subscribe(created -> {
+                    if (created > 0) {
+                        publishIndex();
+                    }
+                });
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Holds the lock throughout, as seeding may replace the file and shift every line
+    public synchronized Page page(int page, int size) {
+        int total = count;
+        int to = (int) Math.max(0, total - (long) page * size);
+        int from = Math.max(0, to - size);
+        List<FileParseSummaryDto> items = new ArrayList<>(to - from);
+        if (from < to) {
+            try (FileChannel file = FileChannel.open(Paths.get(historyPath), StandardOpenOption.READ)) {
+                for (int i = to - 1; i >= from; i--) {
+                    FileParseSummaryDto summary = read(file, i);
+                    if (summary != null) {
+                        items.add(summary);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Error reading the upload history {}: {}", historyPath, e.getMessage());
+            }
+        }
+        return new Page(page, size, total, items);
+    }
+
+    synchronized String indexJson() throws JsonProcessingException {
+        ObjectNode index = objectMapper.createObjectNode();
+        index.put("total", publishedTotal);
+        index.put("latestBatchNo", latestBatchNo);
+        index.put("keyPrefix", keyPrefix);
+        ObjectNode byMonth = index.putObject("months");
+        months.forEach(byMonth::put);
+        return objectMapper.writeValueAsString(index);
+    }
+
+    // One index update at a time, so an older index never lands after a newer one; changes made in the
+    // meantime are sent together once it completes
+    private void publishIndex() {
+        indexChanged = true;
+        if (!publishing.compareAndSet(false, true)) {
+            return;
+        }
+        indexChanged = false;
+        indexStale = false;
+        String json;
+        try {
+            json = indexJson();
+        } catch (JsonProcessingException e) {
+            publishing.set(false);
+            log.error("Error serializing the upload history index: {}", e.getMessage());
+            return;
+        }
+        httpClientService.saveDataStoreEntry(indexKey, json).doOnNext(saved -> {
+            if (!saved) {
+                indexStale = true;
+            }
+        }).doFinally(signal -> {
+            publishing.set(false);
+            if (indexChanged) {
+                publishIndex();
+            }
+        }).subscribe();
+    }
+
+    private Mono<Boolean> publish(int line) {
+        FileParseSummaryDto summary;
+        try (FileChannel file = FileChannel.open(Paths.get(historyPath), StandardOpenOption.READ)) {
+            summary = read(file, line);
+        } catch (IOException e) {
+            log.error("Error reading the upload history {}: {}", historyPath, e.getMessage());
+            return Mono.just(false);
+        }
+        if (summary == null) {
+            // Never readable, so it is not sent again
+            markPublished(line, null);
+            return Mono.just(false);
+        }
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(summary);
+        } catch (JsonProcessingException e) {
+            log.error("Error serializing the summary of {}: {}", summary.getFileName(), e.getMessage());
+            return Mono.just(false);
+        }
+        return httpClientService.createDataStoreEntry(keyPrefix + month(summary) + "-" + summary.getBatchNo(), json).doOnNext(created -> {
+            if (created) {
+                markPublished(line, summary);
+            }
+        });
+    }
+
+    private synchronized void markPublished(int line, FileParseSummaryDto summary) {
+        published.set(line);
+        if (summary != null) {
+            countPublished(line, summary);
+        }
+        try {
+            if (publishedChannel == null) {
+                publishedChannel = FileChannel.open(publishedPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES).putInt(line).flip();
+            while (buffer.hasRemaining()) {
+                publishedChannel.write(buffer);
+            }
+            publishedChannel.force(false);
+        } catch (IOException e) {
+            log.error("Error writing to the published uploads {}: {}", publishedPath(), e.getMessage());
+        }
+    }
+
+    private void countPublished(int line, FileParseSummaryDto summary) {
+        months.merge(month(summary), 1, Integer::sum);
+        publishedTotal++;
+        if (line > latestPublishedLine) {
+            latestPublishedLine = line;
+            latestBatchNo = summary.getBatchNo();
+        }
+    }
+
+    // The single key the history used to be kept in, and the upload keys already in the namespace
+    private void seed() {
+        if (!seeding.compareAndSet(false, true)) {
+            return;
+        }
+        Mono.defer(() -> Mono.zip(legacyHistory(), shards()))
+                .doFinally(signal -> seeding.set(false))
+                .subscribe(history -> {
+                    Map<String, FileParseSummaryDto> byBatchNo = new LinkedHashMap<>();
+                    Set<String> publishedBatchNos = new HashSet<>();
+                    for (FileParseSummaryDto summary : history.getT1()) {
+                        byBatchNo.putIfAbsent(summary.getBatchNo(), summary);
+                    }
+                    for (FileParseSummaryDto summary : history.getT2()) {
+                        byBatchNo.put(summary.getBatchNo(), summary);
+                        publishedBatchNos.add(summary.getBatchNo());
+                    }
+                    List<FileParseSummaryDto> summaries = new ArrayList<>(byBatchNo.values());
+                    // Oldest first, as in the mirror; upload dates sort as text
+                    summaries.sort(Comparator.comparing(summary -> summary.getUploadDate() != null ? summary.getUploadDate() : ""));
+                    if (prepend(summaries, publishedBatchNos)) {
+                        log.info("Seeded the upload history with {} uploads from DHIS2, {} of them to be published again", summaries.size(), summaries.size() - publishedBatchNos.size());
+                        indexStale = !summaries.isEmpty();
+                        publishPending();
+                    }
+                }, error -> log.warn("Could not seed the upload history from DHIS2, trying again on the next reconcile scan: {}", error.getMessage()));
+    }
+
+    private Mono<List<FileParseSummaryDto>> legacyHistory() {
+        return httpClientService.getDataStoreEntry(LEGACY_HISTORY_KEY).<List<FileParseSummaryDto>>handle((json, sink) -> {
+            try {
+                sink.next(objectMapper.readValue(json, new TypeReference<List<FileParseSummaryDto>>() {
+                }));
+            } catch (JsonProcessingException e) {
+                log.warn("Ignoring the unreadable {} upload history: {}", LEGACY_HISTORY_KEY, e.getMessage());
+            }
+        }).defaultIfEmpty(List.of());
+    }
+
+    private Mono<List<FileParseSummaryDto>> shards() {
+        return httpClientService.getDataStoreKeys()
+                .flatMapMany(Flux::fromIterable)
+                .filter(key -> key.startsWith(keyPrefix) && !key.equals(indexKey))
+                .flatMap(httpClientService::getDataStoreEntry, 4)
+                .<FileParseSummaryDto>handle((json, sink) -> {
+                    try {
+                        sink.next(objectMapper.readValue(json, FileParseSummaryDto.class));
+                    } catch (JsonProcessingException e) {
+                        log.warn("Ignoring an unreadable upload history key: {}", e.getMessage());
+                    }
+                })
+                .collectList();
+    }
+
+    /**
+     * Puts the seeded summaries in front of those recorded since startup, leaving out any of them the mirror
+     * already has. Waits for a later call while summaries are being sent, as their line numbers would change.
+     */
+    private synchronized boolean prepend(List<FileParseSummaryDto> summaries, Set<String> publishedBatchNos) {
+        if (!sending.isEmpty()) {
+            return false;
+        }
+        Path path = Paths.get(historyPath);
+        try {
+            Set<String> recorded = new HashSet<>();
+            if (count > 0) {
+                try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                    for (int i = 0; i < count; i++) {
+                        FileParseSummaryDto summary = read(file, i);
+                        if (summary != null) {
+                            recorded.add(summary.getBatchNo());
+                        }
+                    }
+                }
+            }
+            List<FileParseSummaryDto> seeded = new ArrayList<>();
+            for (FileParseSummaryDto summary : summaries) {
+                if (!recorded.contains(summary.getBatchNo())) {
+                    seeded.add(summary);
+                }
+            }
+            if (!seeded.isEmpty()) {
+                replaceWithSeeded(path, seeded, publishedBatchNos);
+            }
+            Files.deleteIfExists(seedingPath());
+            seedPending = false;
+            return true;
+        } catch (IOException e) {
+            log.error("Error seeding the upload history {}: {}", path.toAbsolutePath(), e.getMessage());
+            return false;
+        }
+    }
+
+    // Called holding the lock
+    private void replaceWithSeeded(Path path, List<FileParseSummaryDto> seeded, Set<String> publishedBatchNos) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        int lines = seeded.size();
+        long[] seededOffsets = new long[lines + 1];
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel output = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int i = 0; i < lines; i++) {
+                ByteBuffer buffer = ByteBuffer.wrap((objectMapper.writeValueAsString(seeded.get(i)) + "\n").getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                seededOffsets[i + 1] = output.position();
+            }
+            if (Files.isRegularFile(path)) {
+                try (FileChannel input = FileChannel.open(path, StandardOpenOption.READ)) {
+                    long size = input.size();
+                    for (long position = 0; position < size; ) {
+                        position += input.transferTo(position, size - position, output);
+                    }
+                }
+            }
+            output.force(false);
+        }
+        close();
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Every line recorded since startup moves down by the seeded ones
+        long shift = seededOffsets[lines];
+        long[] shifted = new long[Math.max(offsets.length, Integer.highestOneBit(lines + count + 1) * 2)];
+        System.arraycopy(seededOffsets, 0, shifted, 0, lines);
+        for (int i = 0; i <= count; i++) {
+            shifted[lines + i] = offsets[i] + shift;
+        }
+        offsets = shifted;
+        BitSet publishedLines = new BitSet();
+        published.stream().forEach(line -> publishedLines.set(line + lines));
+        published.clear();
+        published.or(publishedLines);
+        if (latestPublishedLine >= 0) {
+            latestPublishedLine += lines;
+        }
+        count += lines;
+        for (int i = 0; i < lines; i++) {
+            if (publishedBatchNos.contains(seeded.get(i).getBatchNo())) {
+                published.set(i);
+                countPublished(i, seeded.get(i));
+            }
+        }
+
+        Path publishedPath = publishedPath();
+        Path publishedTemporary = publishedPath.resolveSibling(publishedPath.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(publishedTemporary)))) {
+            for (int line = published.nextSetBit(0); line >= 0; line = published.nextSetBit(line + 1)) {
+                output.writeInt(line);
+            }
+        }
+        Files.move(publishedTemporary, publishedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path seedingPath() {
+        Path path = Paths.get(historyPath);
+        return path.resolveSibling(path.getFileName() + ".seeding");
+    }
+
+    private Path publishedPath() {
+        Path path = Paths.get(historyPath);
+        return path.resolveSibling(path.getFileName() + ".published");
+    }
+
+    private void append(String json) throws IOException {
+        Path path = Paths.get(historyPath);
+        if (channel == null) {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            if (seedPending && !Files.exists(seedingPath())) {
+                Files.createFile(seedingPath());
+            }
+        }
+        long start = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap((json + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        addLine(start, channel.size());
+    }
+
+    private void addLine(long start, long end) {
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[count] = start;
+        offsets[++count] = end;
+    }
+
+    private FileParseSummaryDto read(FileChannel file, int line) {
+        long start;
+        int length;
+        synchronized (this) {
+            start = offsets[line];
+            length = (int) (offsets[line + 1] - start);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining() && file.read(buffer, start + buffer.position()) > 0) {
+                // Positional reads until the whole line is in
+            }
+            return objectMapper.readValue(buffer.array(), 0, buffer.position(), FileParseSummaryDto.class);
+        } catch (IOException e) {
+            log.warn("Skipping unreadable line {} of the upload history: {}", line + 1, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String month(FileParseSummaryDto summary) {
+        String uploadDate = summary.getUploadDate();
+        return uploadDate != null && uploadDate.length() >= 7 ? uploadDate.substring(0, 7) : "unknown";
+    }
+}
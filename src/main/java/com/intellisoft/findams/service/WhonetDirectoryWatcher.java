@@ -0,0 +1,190 @@
+package com.intellisoft.findams.service;
+
+import com.intellisoft.findams.constants.Constants;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands WHONET files to the {@link WhonetIngestionExecutor} as soon as they land in the watched directory. A file
+ * is only queued once its size and modification time have not changed for {@code stable-millis}, so files still
+ * being copied in are left alone; writers can also copy to a {@code .tmp} or {@code .part} name and rename it
+ * when done. {@link #reconcile()} rescans the directory for anything the watch missed.
+ */
+@Slf4j
+@Component
+public class WhonetDirectoryWatcher {
+    private static final List<String> IN_PROGRESS_SUFFIXES = List.of(".tmp", ".part", ".partial", ".crdownload", ".filepart");
+
+    private final WhonetIngestionExecutor whonetIngestionExecutor;
+    private final Map<Path, Observation> candidates = new ConcurrentHashMap<>();
+    private volatile WatchService watchService;
+    private volatile boolean running;
+    private Thread watcher;
+
+    @Value("${ams.whonet.directory:" + Constants.WHONET_FILE_PATH + "}")
+    private String directory;
+
+    @Value("${ams.whonet.watch:true}")
+    private boolean watchEnabled;
+
+    // How long a file must stay unchanged before it is considered fully written
+    @Value("${ams.whonet.stable-millis:2000}")
+    private long stableMillis;
+
+    public WhonetDirectoryWatcher(WhonetIngestionExecutor whonetIngestionExecutor) {
+        this.whonetIngestionExecutor = whonetIngestionExecutor;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        if (watchEnabled) {
+            register();
+        }
+        // Files waiting from before the start are picked up straight away
+        reconcile();
+
+        watcher = new Thread(this::watch, "whonet-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        running = false;
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Adds every file in the directory as a candidate, and starts watching the directory if it did not exist before.
+     */
+    public void reconcile() {
+        Path path = Paths.get(directory);
+        if (!Files.isDirectory(path)) {
+            return;
+        }
+        if (watchEnabled && watchService == null) {
+            register();
+        }
+        File[] files = path.toFile().listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                observe(file.toPath());
+            }
+        }
+    }
+
+    private synchronized void register() {
+        Path path = Paths.get(directory);
+        if (watchService != null) {
+            return;
+        }
+        if (!Files.isDirectory(path)) {
+            log.warn("WHONET directory {} does not exist, files will only be picked up by the periodic scan", path.toAbsolutePath());
+            return;
+        }
+        try {
+            WatchService service = FileSystems.getDefault().newWatchService();
+            path.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchService = service;
+        } catch (IOException e) {
+            log.error("Error watching WHONET directory {}", path.toAbsolutePath(), e);
+        }
+    }
+
+    private void watch() {
+        long checkMillis = Math.max(50, stableMillis / 4);
+        try {
+            while (running) {
+                WatchService service = watchService;
+                if (service == null) {
+                    Thread.sleep(checkMillis);
+                } else {
+                    WatchKey key = service.poll(checkMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        drain(key);
+                    }
+                }
+                queueStableFiles();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            log.debug("WHONET watcher stopped");
+        }
+    }
+
+    private void drain(WatchKey key) {
+        Path watched = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                reconcile();
+            } else if (event.context() instanceof Path name) {
+                observe(watched.resolve(name));
+            }
+        }
+        key.reset();
+    }
+
+    private void observe(Path path) {
+        String name = path.getFileName().toString();
+        String lowerCaseName = name.toLowerCase(Locale.ROOT);
+        if (name.startsWith(".") || IN_PROGRESS_SUFFIXES.stream().anyMatch(lowerCaseName::endsWith)) {
+            return;
+        }
+        candidates.putIfAbsent(path, new Observation(-1, -1, System.currentTimeMillis()));
+    }
+
+    // Queues the candidates that have not changed for the whole stable period
+    private void queueStableFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Observation>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Observation> candidate = iterator.next();
+            File file = candidate.getKey().toFile();
+            if (!file.isFile()) {
+                // Renamed or removed before it was complete
+                iterator.remove();
+                continue;
+            }
+            long size = file.length();
+            long lastModified = file.lastModified();
+            Observation observation = candidate.getValue();
+            if (size != observation.size || lastModified != observation.lastModified) {
+                candidate.setValue(new Observation(size, lastModified, now));
+            } else if (now - observation.since >= stableMillis) {
+                iterator.remove();
+                whonetIngestionExecutor.offer(file);
+            }
+        }
+    }
+
+    private record Observation(long size, long lastModified, long since) {
+    }
+}
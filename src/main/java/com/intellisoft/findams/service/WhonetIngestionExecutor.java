@@ -0,0 +1,209 @@
+package com.intellisoft.findams.service;
+
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import com.intellisoft.findams.dto.IngestJob;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ingests the WHONET files dropped in the watched directory on a pool of {@code workers} threads of its own, so
+ * queuing a file returns straight away and a slow file never holds up the scheduler or the FunSoft sync.
+ * Waiting files are taken oldest first. A file is queued only once until it has been processed, and a file that
+ * fails is logged without affecting the others. Each file gets an {@link IngestJob} whose progress can be
+ * looked up by ID until {@value #MAX_JOBS} newer jobs have been queued.
+ * <p>
+ * A file that failed stays in the directory, so the directory scans {@link #offer} it again; it is only queued
+ * again once {@code retry-backoff-seconds} have passed since it last failed, doubling with each failed attempt up
+ * to {@code max-retry-backoff-seconds}. Replacing the file, or submitting it by hand, queues it straight away.
+ */
+@Slf4j
+@Service
+public class WhonetIngestionExecutor {
+    static final int MAX_JOBS = 500;
+
+    private final MicrobiologyService microbiologyService;
+    private final IngestJournal ingestJournal;
+    private final FileHashIndex fileHashIndex;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, IngestJob> pendingFiles = new ConcurrentHashMap<>();
+    private final Map<String, IngestJob> jobs = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IngestJob> eldest) {
+            return size() > MAX_JOBS;
+        }
+    });
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    @Value("${ams.whonet.ingest.retry-backoff-seconds:60}")
+    private long retryBackoffSeconds;
+
+    @Value("${ams.whonet.ingest.max-retry-backoff-seconds:21600}")
+    private long maxRetryBackoffSeconds;
+
+    public WhonetIngestionExecutor(MicrobiologyService microbiologyService, IngestJournal ingestJournal, FileHashIndex fileHashIndex, @Value("${ams.whonet.ingest.workers:2}") int workers) {
+        this.microbiologyService = microbiologyService;
+        this.ingestJournal = ingestJournal;
+        this.fileHashIndex = fileHashIndex;
+        int poolSize = Math.max(1, workers);
+        // Files are submitted oldest first, and the priority queue keeps that order among those still waiting
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "whonet-ingest-" + sequence.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public IngestJob submit(File file) {
+        return submit(file, false);
+    }
+
+    /**
+     * Queues a file found in the directory, unless it failed before and its retry backoff has not passed yet.
+     *
+     * @return the job of the file, or null if it was left for a later scan
+     */
+    public IngestJob offer(File file) {
+        IngestJournal.Entry entry = ingestJournal.get(file);
+        int attempts = ingestJournal.attempts(file);
+        if (entry != null && entry.state() == IngestJournal.State.FAILED && attempts > 0) {
+            long backoffMillis = Math.min(maxRetryBackoffSeconds, retryBackoffSeconds << Math.min(attempts - 1, 20)) * 1000;
+            if (System.currentTimeMillis() - entry.at() < backoffMillis) {
+                log.debug("{} failed {} times, last with: {}; waiting before trying it again", file.getName(), attempts, entry.detail());
+                return null;
+            }
+        }
+        return submit(file, false);
+    }
+
+    /**
+     * Queues the file unless it is already waiting or being processed. A file whose content was imported before
+     * is archived without being parsed again, unless {@code force} is set.
+     *
+     * @return the job of the file, which is the one already queued if the file was waiting or being processed
+     */
+    public IngestJob submit(File file, boolean force) {
+        String filePath = file.getAbsolutePath();
+        IngestJob job = new IngestJob(UUID.randomUUID().toString(), file.getName(), force);
+        IngestJob pending = pendingFiles.putIfAbsent(filePath, job);
+        if (pending != null) {
+            return pending;
+        }
+        jobs.put(job.getId(), job);
+        if (!ingestJournal.isPostedButNotArchived(file)) {
+            ingestJournal.discovered(file);
+        }
+        executor.execute(new IngestTask(file, file.lastModified(), job));
+        log.info("Queued WHONET file {} as job {}, {} waiting", file.getName(), job.getId(), executor.getQueue().size());
+        return job;
+    }
+
+    public boolean isPending(File file) {
+        return pendingFiles.containsKey(file.getAbsolutePath());
+    }
+
+    public IngestJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    public int getPendingCount() {
+        return pendingFiles.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void ingest(File file, IngestJob job) {
+        String filePath = file.getAbsolutePath();
+        job.started();
+        try {
+            if (!file.isFile()) {
+                job.failed("File no longer exists");
+                return;
+            }
+            if (ingestJournal.isPostedButNotArchived(file)) {
+                // Posted before a restart but never moved, so it must not be posted again
+                log.info("{} was already posted, archiving it", file.getName());
+                if (microbiologyService.archive(filePath, null)) {
+                    job.completed(null);
+                } else {
+                    job.failed("File was posted but could not be archived");
+                }
+                return;
+            }
+
+            String sha256 = FileHashIndex.sha256(file);
+            job.hashed(sha256);
+            FileHashIndex.Entry previousImport = fileHashIndex.find(sha256);
+            if (previousImport != null && !job.isForced()) {
+                log.info("{} has the same content as {} imported in batch {}, skipping it", file.getName(), previousImport.fileName(), previousImport.batchNo());
+                if (microbiologyService.archive(filePath, null)) {
+                    job.skipped(previousImport.fileName());
+                } else {
+                    job.failed("File is a duplicate of " + previousImport.fileName() + " but could not be archived");
+                }
+                return;
+            }
+
+            FileParseSummaryDto summary = microbiologyService.processFile(filePath, file.getName(), job).block();
+            // Not archived, so it is sent again; rejected records only until they have had all their attempts
+            if (summary != null && (summary.getFailedChunks() > 0 || summary.getRejectedRecords() > 0 && summary.getBatchNo() == null)) {
+                log.warn("{} of {}, leaving it to be sent again", MicrobiologyService.failure(summary), file.getName());
+                job.failed(MicrobiologyService.failure(summary));
+                return;
+            }
+            // Content DHIS2 rejected is not marked as imported, so dropping the file again after a fix sends it
+            if (summary != null && !"ERROR".equals(summary.getStatus())) {
+                fileHashIndex.record(sha256, file.getName(), summary.getBatchNo());
+            }
+            job.completed(summary);
+            if (summary != null) {
+                log.info("Uploaded {}: {} imported, {} updated, {} ignored in {} chunks ({} failed)", file.getName(), summary.getImported(), summary.getUpdated(), summary.getIgnored(), summary.getChunks(), summary.getFailedChunks());
+            }
+        } catch (Exception e) {
+            job.failed(e.getMessage());
+            ingestJournal.failed(file, e.getMessage());
+            log.error("Error occurred while processing {}: {}", file.getName(), e.getMessage());
+        } finally {
+            pendingFiles.remove(filePath);
+        }
+    }
+
+    private final class IngestTask implements Runnable, Comparable<IngestTask> {
+        private final File file;
+        private final long lastModified;
+        private final IngestJob job;
+
+        private IngestTask(File file, long lastModified, IngestJob job) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            ingest(file, job);
+        }
+
+        @Override
+        public int compareTo(IngestTask other) {
+            int byAge = Long.compare(lastModified, other.lastModified);
+            return byAge != 0 ? byAge : file.getName().compareTo(other.file.getName());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.intellisoft.findams.mapping;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DateNormalizerTest {
+
+    @Test
+    void normalizesTheWhonetExportFormats() {
+        DateNormalizer dates = new DateNormalizer();
+
+        assertEquals("2023-02-01", dates.normalize("01/2/2023 10:15:00 AM"));
+        assertEquals("2023-02-01", dates.normalize("01/02/2023 08:00"));
+        assertEquals("2023-02-01", dates.normalize("01/02/2023 08:00:30"));
+        assertEquals("2023-12-31", dates.normalize("31/12/2023 23:59:59"));
+        assertEquals("2023-02-01", dates.normalize("1/2/2023"));
+        assertEquals("2023-02-01", dates.normalize("2023-02-01"));
+        assertEquals("2023-02-01", dates.normalize("01-Feb-2023"));
+        assertEquals("2023-12-31", dates.normalize(" 31/12/2023 11:59:59 pm "));
+        assertEquals(8, dates.getNormalizedCount());
+    }
+
+    @Test
+    void leavesValuesNoFormatAcceptsAsTheyAre() {
+        DateNormalizer dates = new DateNormalizer();
+
+        assertEquals("31/02/2023", dates.normalize("31/02/2023"));
+        assertEquals("unknown", dates.normalize("unknown"));
+        assertEquals("01/02/2023 08:00 trailing", dates.normalize("01/02/2023 08:00 trailing"));
+        assertEquals("", dates.normalize(""));
+        assertNull(dates.normalize(null));
+        assertEquals(3, dates.getInvalidCount());
+        assertEquals(0, dates.getNormalizedCount());
+        assertNull(dates.getDominantPattern());
+    }
+
+    @Test
+    void detectsTheDominantFormatFromTheSample() {
+        DateNormalizer dates = new DateNormalizer();
+        for (int i = 0; i < DateNormalizer.SAMPLE_SIZE * 2; i++) {
+            dates.normalize(i % 8 == 0 ? "2023-02-01" : "01/02/2023 08:00");
+        }
+
+        assertEquals("dd/MM/yyyy HH:mm", dates.getDominantPattern());
+        assertEquals("2023-02-01", dates.normalize("2023-02-01"));
+        assertEquals(DateNormalizer.SAMPLE_SIZE * 2 + 1, dates.getNormalizedCount());
+    }
+
+    @Test
+    void agreesWithSimpleDateFormatOnTheFormatsItReplaced() {
+        for (String value : new String[]{"01/2/2023 10:15:00 AM", "14/11/2022 08:00", "28/2/2024 03:45:12 PM", "07/06/2023 17:30"}) {
+            assertEquals(simpleDateFormat(value), new DateNormalizer().normalize(value), value);
+        }
+    }
+
+    // A timing comparison rather than a JMH benchmark, which the build does not include
+    @Tag("perf")
+    @Test
+    void isFasterThanParsingWithSimpleDateFormat() {
+        String[] values = {"01/2/2023 10:15:00 AM", "14/11/2022 08:00", "28/2/2024 03:45:12 PM", "07/06/2023 17:30"};
+        DateNormalizer dates = new DateNormalizer();
+        int rows = 50_000;
+
+        // Warm up both paths before timing them
+        for (int i = 0; i < rows; i++) {
+            dates.normalize(values[i % values.length]);
+            simpleDateFormat(values[i % values.length]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            assertEquals(10, dates.normalize(values[i % values.length]).length());
+        }
+        long normalizer = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            assertEquals(10, simpleDateFormat(values[i % values.length]).length());
+        }
+        long legacy = System.nanoTime() - start;
+
+        assertTrue(normalizer < legacy, () -> "DateNormalizer took " + normalizer / rows + " ns per date, SimpleDateFormat " + legacy / rows + " ns");
+    }
+
+    // The parsing WhonetRowNormalizer did before DateNormalizer: new formats per call and exceptions for fallback
+    private static String simpleDateFormat(String value) {
+        try {
+            SimpleDateFormat inputDateFormat = new SimpleDateFormat("dd/M/yyyy hh:mm:ss a", Locale.ENGLISH);
+            SimpleDateFormat alternativeInputDateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm", Locale.ENGLISH);
+            SimpleDateFormat outputDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            Date date;
+            try {
+                date = inputDateFormat.parse(value);
+            } catch (ParseException e) {
+                date = alternativeInputDateFormat.parse(value);
+            }
+            return outputDateFormat.format(date);
+        } catch (ParseException e) {
+            return value;
+        }
+    }
+}
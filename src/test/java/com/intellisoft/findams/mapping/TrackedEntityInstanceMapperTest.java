@@ -0,0 +1,238 @@
+package com.intellisoft.findams.mapping;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.configuration.TrackerPayloadModule;
+import com.intellisoft.findams.dto.Attribute;
+import com.intellisoft.findams.dto.Enrollment;
+import com.intellisoft.findams.dto.TrackedEntityInstance;
+import com.intellisoft.findams.parser.WhonetFileReader;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrackedEntityInstanceMapperTest {
+
+    private static final String HEADER = "PATIENT_ID|FIRST_NAME|LAST_NAME|SEX|AGE|WARD|DEPARTMENT|SPEC_NUM|SPEC_DATE|SPEC_TYPE|ORGANISM|ORG_TYPE|DATE_ADMIS|AMP_ND10|CIP_ND5|GEN_ND10|MEM_ND10|CRO_ND30";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void mapsExactlyOneTrackedEntityInstancePerRow() throws IOException {
+        Path file = writeExport(250);
+
+        List<TrackedEntityInstance> instances = new ArrayList<>();
+        try (WhonetFileReader reader = WhonetFileReader.open(file)) {
+            WhonetRowNormalizer rowNormalizer = new WhonetRowNormalizer(reader.getHeader());
+            TrackedEntityInstanceMapper mapper = newMapper(reader.getHeader());
+            String[] row;
+            while ((row = reader.nextRow()) != null) {
+                rowNormalizer.normalize(row);
+                instances.add(mapper.map(row));
+            }
+        }
+
+        assertEquals(250, instances.size());
+        Enrollment enrollment = instances.get(0).enrollments().get(0);
+        assertEquals("2023-02-01", enrollment.enrollmentDate());
+        assertEquals(5, enrollment.events().size());
+
+        List<Attribute> attributes = instances.get(0).attributes();
+        assertTrue(attributes.contains(new Attribute("id" + "Organism".hashCode(), "eco")));
+        assertTrue(attributes.contains(new Attribute("id" + "Department".hashCode(), "MED")));
+    }
+
+    @Test
+    void serializesTrackedEntityInstancesWithTheTrackerModule() throws IOException {
+        TrackedEntityInstance instance;
+        try (WhonetFileReader reader = WhonetFileReader.open(writeExport(1))) {
+            String[] row = reader.nextRow();
+            new WhonetRowNormalizer(reader.getHeader()).normalize(row);
+            instance = newMapper(reader.getHeader()).map(row);
+        }
+
+        JsonNode json = new ObjectMapper().registerModule(new TrackerPayloadModule()).valueToTree(instance);
+
+        assertEquals("JySrDBa5jo9", json.path("trackedEntityType").asText());
+        JsonNode event = json.path("enrollments").path(0).path("events").path(0);
+        assertEquals("2023-02-01", event.path("eventDate").asText());
+        assertTrue(event.path("occurredAt").isMissingNode());
+        assertEquals("AMP_ND10", event.path("dataValues").path(0).path("value").asText());
+        assertEquals("Culture with AST", json.path("attributes").path(instance.attributes().size() - 1).path("value").asText());
+    }
+
+    @Test
+    void derivesTheUidsOfTheInstanceItsEnrollmentAndEventsFromTheRowKey() throws IOException {
+        TrackedEntityInstance withoutKey;
+        TrackedEntityInstance instance;
+        TrackedEntityInstance again;
+        try (WhonetFileReader reader = WhonetFileReader.open(writeExport(1))) {
+            String[] row = reader.nextRow();
+            new WhonetRowNormalizer(reader.getHeader()).normalize(row);
+            TrackedEntityInstanceMapper mapper = newMapper(reader.getHeader());
+            withoutKey = mapper.map(row);
+            instance = mapper.map(row, 42L);
+            again = newMapper(reader.getHeader()).map(row, 42L);
+        }
+
+        assertNull(withoutKey.trackedEntityInstance());
+        assertEquals(WhonetRowFingerprint.uid(42L), instance.trackedEntityInstance());
+        assertEquals(again, instance);
+
+        JsonNode json = new ObjectMapper().registerModule(new TrackerPayloadModule()).valueToTree(instance);
+        assertEquals(instance.trackedEntityInstance(), json.path("trackedEntityInstance").asText());
+        JsonNode enrollment = json.path("enrollments").path(0);
+        Set<String> uids = new HashSet<>(Set.of(json.path("trackedEntityInstance").asText(), enrollment.path("enrollment").asText()));
+        for (JsonNode event : enrollment.path("events")) {
+            assertTrue(event.path("event").asText().matches("[a-zA-Z][a-zA-Z0-9]{10}"), event::toString);
+            uids.add(event.path("event").asText());
+        }
+        assertEquals(2 + enrollment.path("events").size(), uids.size());
+    }
+
+    @Test
+    void mapsLargeExportsRowForRow() throws IOException {
+        Path file = writeExport(10_000);
+
+        long rows = 0;
+        try (WhonetFileReader reader = WhonetFileReader.open(file)) {
+            WhonetRowNormalizer rowNormalizer = new WhonetRowNormalizer(reader.getHeader());
+            TrackedEntityInstanceMapper mapper = newMapper(reader.getHeader());
+            String[] row;
+            while ((row = reader.nextRow()) != null) {
+                rowNormalizer.normalize(row);
+                TrackedEntityInstance instance = mapper.map(row);
+                assertEquals("P" + rows, instance.attributes().stream()
+                        .filter(attribute -> attribute.attribute().equals("id" + "Patient ID".hashCode()))
+                        .findFirst().orElseThrow().value());
+                rows++;
+            }
+        }
+
+        assertEquals(10_000, rows);
+    }
+
+    @Tag("perf")
+    @Test
+    void allocatesLittleMoreThanThePayloadPerRow() throws IOException {
+        // JMH is not part of this build, so the allocation rate is measured with the thread allocation counter
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        String[] header;
+        String[] row;
+        try (WhonetFileReader reader = WhonetFileReader.open(writeExport(1))) {
+            header = reader.getHeader();
+            row = reader.nextRow();
+            new WhonetRowNormalizer(header).normalize(row);
+        }
+        TrackedEntityInstanceMapper mapper = newMapper(header);
+
+        long checksum = 0;
+        for (int i = 0; i < 200_000; i++) {
+            checksum += mapper.map(row).attributes().size();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100_000; i++) {
+            checksum += mapper.map(row).attributes().size();
+        }
+        double bytesPerRow = (threads.getThreadAllocatedBytes(threadId) - before) / 100_000.0;
+
+        assertTrue(checksum > 0);
+        // Building the same payload from HashMaps allocated about 8.7 KB per row
+        assertTrue(bytesPerRow < 1_200, () -> bytesPerRow + " bytes allocated per row");
+    }
+
+    @Tag("perf")
+    @Test
+    void mappingTimeScalesLinearlyWithRowCount() throws IOException {
+        // Warm up the JIT so the smallest sample is not dominated by interpretation
+        timeMapping(writeExport(10_000));
+
+        double nanosPerRowAt1k = bestNanosPerRow(writeExport(1_000));
+        double nanosPerRowAt10k = bestNanosPerRow(writeExport(10_000));
+        double nanosPerRowAt100k = bestNanosPerRow(writeExport(100_000));
+
+        // Quadratic mapping would make the per-row cost grow ~100x between 1k and 100k rows
+        assertTrue(nanosPerRowAt10k < nanosPerRowAt1k * 4, () -> "10k rows: " + nanosPerRowAt10k + " ns/row vs " + nanosPerRowAt1k + " ns/row at 1k");
+        assertTrue(nanosPerRowAt100k < nanosPerRowAt1k * 4, () -> "100k rows: " + nanosPerRowAt100k + " ns/row vs " + nanosPerRowAt1k + " ns/row at 1k");
+    }
+
+    private double bestNanosPerRow(Path file) throws IOException {
+        double best = Double.MAX_VALUE;
+        for (int run = 0; run < 2; run++) {
+            best = Math.min(best, timeMapping(file));
+        }
+        return best;
+    }
+
+    private double timeMapping(Path file) throws IOException {
+        long start = System.nanoTime();
+        long rows = 0;
+        long events = 0;
+        try (WhonetFileReader reader = WhonetFileReader.open(file)) {
+            WhonetRowNormalizer rowNormalizer = new WhonetRowNormalizer(reader.getHeader());
+            TrackedEntityInstanceMapper mapper = newMapper(reader.getHeader());
+            String[] row;
+            while ((row = reader.nextRow()) != null) {
+                rowNormalizer.normalize(row);
+                TrackedEntityInstance instance = mapper.map(row);
+                events += instance.enrollments().get(0).events().size();
+                rows++;
+            }
+        }
+        assertTrue(events > 0);
+        return (System.nanoTime() - start) / (double) rows;
+    }
+
+    private TrackedEntityInstanceMapper newMapper(String[] header) throws IOException {
+        Map<String, String> attributeIds = new HashMap<>();
+        for (String attribute : new String[]{"Organism", "Organism Type", "Patient ID", "First Name", "Last Name", "Sex", "Age (Years)", "Patient Ward", "Department", "Date of admission", "Specimen/sample Number", "Spec collection date", "Specimen Type"}) {
+            attributeIds.put(attribute, "id" + attribute.hashCode());
+        }
+
+        OptionSetIndex optionSets = OptionSetIndex.builder()
+                .option("Organism", "eco", "Escherichia coli").option("Organism", "kpn", "Klebsiella pneumoniae").option("Organism", "ctr", "Candida tropicalis")
+                .option("Sex", "M", "Male").option("Sex", "F", "Female").option("Sex", "O", "Other")
+                .option("Specimens", "bl", "Blood").option("Specimens", "ur", "Urine")
+                .option("Wards", "MED", "Medical").option("Wards", "SUR", "Surgical")
+                .build();
+
+        WhonetMappingDefinition definition = WhonetMappingDefinition.load(new ClassPathResource("whonet-mapping.yml"));
+        return new TrackedEntityInstanceMapper(WhonetMappingPlan.compile(definition, header, attributeIds, optionSets, new OptionSetMatcher()), drugCode -> "Access");
+    }
+
+    private Path writeExport(int rows) throws IOException {
+        Path file = tempDir.resolve("export-" + rows + ".txt");
+        if (Files.exists(file)) {
+            return file;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write("\r\n");
+            for (int i = 0; i < rows; i++) {
+                writer.write("P" + i + "|Jane|Doe|" + (i % 2 == 0 ? "f" : "m") + "|" + (i % 90) + "|Ward " + (i % 7) + "|Medical|S" + i
+                        + "|01/2/2023 10:15:00 AM|Blood|" + (i % 3 == 0 ? "Escherichia coli" : "Klebsiella pneumoniae") + "|-|01/02/2023 08:00|R|S|I|S|R\r\n");
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,85 @@
+package com.intellisoft.findams.parser;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonArrayStreamReaderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void emitsEachPatientWhateverTheBufferBoundaries() {
+        String body = "{\"status\":\"ok\",\"meta\":{\"patients\":[\"nested, not the field\"]},\"patients\":["
+                + "{\"patient_id\":\"P1\",\"visits\":[{\"visit_date\":\"2023-05-01\",\"antibiotic_prescriptions\":[{\"product_name\":\"Amoxicillin\"}]}]},"
+                + "{\"patient_id\":\"P2\",\"gender\":\"F\",\"visits\":[]},"
+                + "\"not an object\"],\"total\":3}";
+
+        for (int chunkSize : new int[]{1, 7, 64, body.length()}) {
+            List<JsonNode> patients = JsonArrayStreamReader.elements(chunks(body, chunkSize), "patients", objectMapper).collectList().block();
+
+            assertEquals(3, patients.size(), "chunks of " + chunkSize);
+            assertEquals("P1", patients.get(0).path("patient_id").asText());
+            assertEquals("Amoxicillin", patients.get(0).path("visits").path(0).path("antibiotic_prescriptions").path(0).path("product_name").asText());
+            assertEquals("F", patients.get(1).path("gender").asText());
+            assertEquals("not an object", patients.get(2).asText());
+        }
+    }
+
+    @Test
+    void emitsNothingWithoutThePatientsField() {
+        assertEquals(0, JsonArrayStreamReader.elements(chunks("{\"error\":\"no data\"}", 5), "patients", objectMapper).count().block());
+    }
+
+    @Test
+    void failsOnATruncatedResponse() {
+        Flux<JsonNode> patients = JsonArrayStreamReader.elements(chunks("{\"patients\":[{\"patient_id\":\"P1\"},{\"patient_id\":", 8), "patients", objectMapper);
+
+        List<JsonNode> emitted = new ArrayList<>();
+        assertThrows(UncheckedIOException.class, () -> patients.doOnNext(emitted::add).blockLast());
+        assertEquals(1, emitted.size());
+    }
+
+    @Test
+    void emitsPatientsBeforeTheWholeResponseHasArrived() {
+        int patientCount = 20_000;
+        AtomicInteger buffersFed = new AtomicInteger();
+        AtomicInteger buffersFedAtFirstPatient = new AtomicInteger(-1);
+        Flux<DataBuffer> body = Flux.range(0, patientCount + 2).map(i -> {
+            String json = i == 0 ? "{\"patients\":[" : i == patientCount + 1 ? "]}" : (i > 1 ? "," : "") + "{\"patient_id\":\"P" + i + "\",\"visits\":[{\"age\":\"" + (i % 90) + "\"}]}";
+            buffersFed.incrementAndGet();
+            return DefaultDataBufferFactory.sharedInstance.wrap(json.getBytes(StandardCharsets.UTF_8));
+        });
+
+        long count = JsonArrayStreamReader.elements(body, "patients", objectMapper)
+                .doOnNext(patient -> buffersFedAtFirstPatient.compareAndSet(-1, buffersFed.get()))
+                .count().block();
+
+        assertEquals(patientCount, count);
+        assertTrue(buffersFedAtFirstPatient.get() <= 3, () -> "first patient emitted after " + buffersFedAtFirstPatient.get() + " buffers");
+    }
+
+    private static Flux<DataBuffer> chunks(String body, int chunkSize) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        List<DataBuffer> buffers = new ArrayList<>();
+        for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+            byte[] chunk = new byte[Math.min(chunkSize, bytes.length - offset)];
+            System.arraycopy(bytes, offset, chunk, 0, chunk.length);
+            buffers.add(DefaultDataBufferFactory.sharedInstance.wrap(chunk));
+        }
+        return Flux.fromIterable(buffers);
+    }
+}
@@ -0,0 +1,141 @@
+package com.intellisoft.findams.parser;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WhonetFileReaderTest {
+
+    @Test
+    void keepsQuotedDelimitersAndEscapedQuotesInTheValue() throws IOException {
+        List<String[]> rows = rows("SPEC_NUM,COMMENT\nS-1,\"Ward 3, bed 2\"\nS-2,\"said \"\"urgent\"\"\"\n");
+
+        assertArrayEquals(new String[]{"S-1", "Ward 3, bed 2"}, rows.get(0));
+        assertArrayEquals(new String[]{"S-2", "said \"urgent\""}, rows.get(1));
+    }
+
+    @Test
+    void readsLineBreaksInsideQuotesAsPartOfTheValue() throws IOException {
+        List<String[]> rows = rows("SPEC_NUM,COMMENT\nS-1,\"first line\nsecond line\"\nS-2,plain\n");
+
+        assertEquals(2, rows.size());
+        assertArrayEquals(new String[]{"S-1", "first line\nsecond line"}, rows.get(0));
+        assertArrayEquals(new String[]{"S-2", "plain"}, rows.get(1));
+    }
+
+    @Test
+    void readsCrlfAndLfLineEndingsAlike() throws IOException {
+        String lf = "SPEC_NUM|ORGANISM\nS-1|eco\n\nS-2|kpn\n";
+
+        WhonetFileReader crlfReader = WhonetFileReader.open(stream(lf.replace("\n", "\r\n").getBytes(StandardCharsets.UTF_8)), null);
+        assertArrayEquals(new String[]{"SPEC_NUM", "ORGANISM"}, crlfReader.getHeader());
+        List<String[]> crlf = rows(crlfReader);
+        List<String[]> plain = rows(lf);
+
+        assertEquals(2, crlf.size());
+        for (int i = 0; i < crlf.size(); i++) {
+            assertArrayEquals(plain.get(i), crlf.get(i));
+        }
+        assertArrayEquals(new String[]{"S-2", "kpn"}, crlf.get(1));
+    }
+
+    @Test
+    void skipsAUtf8ByteOrderMark() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+        bytes.write("SPEC_NUM,ORGANISM\nS-1,Salmonella Typhimurium ß\n".getBytes(StandardCharsets.UTF_8));
+
+        try (WhonetFileReader reader = WhonetFileReader.open(stream(bytes.toByteArray()), null)) {
+            assertEquals(StandardCharsets.UTF_8, reader.getCharset());
+            assertEquals("SPEC_NUM", reader.getHeader()[0]);
+            assertEquals("Salmonella Typhimurium ß", reader.nextRow()[1]);
+        }
+    }
+
+    @Test
+    void fallsBackToWindows1252WhenTheFileIsNotUtf8() throws IOException {
+        byte[] bytes = "SPEC_NUM,WARD\nS-1,Pédiatrie\n".getBytes(Charset.forName("windows-1252"));
+
+        try (WhonetFileReader reader = WhonetFileReader.open(stream(bytes), null)) {
+            assertEquals(Charset.forName("windows-1252"), reader.getCharset());
+            assertEquals("Pédiatrie", reader.nextRow()[1]);
+        }
+    }
+
+    @Test
+    void replacesInvalidUtf8BeyondTheSampledBytes() throws IOException {
+        StringBuilder content = new StringBuilder("SPEC_NUM,WARD\n");
+        while (content.length() < 70 * 1024) {
+            content.append("S-").append(content.length()).append(",Medical\n");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(content.toString().getBytes(StandardCharsets.UTF_8));
+        bytes.write("S-last,P".getBytes(StandardCharsets.UTF_8));
+        bytes.write(0xE9);
+        bytes.write("diatrie\n".getBytes(StandardCharsets.UTF_8));
+
+        try (WhonetFileReader reader = WhonetFileReader.open(stream(bytes.toByteArray()), null)) {
+            assertEquals(StandardCharsets.UTF_8, reader.getCharset());
+            String[] last = null;
+            String[] row;
+            while ((row = reader.nextRow()) != null) {
+                last = row;
+            }
+            assertEquals("P\uFFFDdiatrie", last[1]);
+        }
+    }
+
+    @Test
+    void detectsTheDelimiterFromTheHeader() throws IOException {
+        for (char delimiter : new char[]{'|', '\t', ',', ';'}) {
+            String d = String.valueOf(delimiter);
+            // Quoted delimiters in the header are not counted
+            String content = String.join(d, "SPEC_NUM", "\"ORGANISM, CODE\"", "WARD") + "\n" + String.join(d, "S-1", "\"a,b;c|d\"", "MED") + "\n";
+
+            try (WhonetFileReader reader = WhonetFileReader.open(stream(content.getBytes(StandardCharsets.UTF_8)), null)) {
+                assertEquals(delimiter, reader.getDelimiter());
+                assertArrayEquals(new String[]{"SPEC_NUM", "ORGANISM, CODE", "WARD"}, reader.getHeader());
+                assertArrayEquals(new String[]{"S-1", "a,b;c|d", "MED"}, reader.nextRow());
+            }
+        }
+    }
+
+    @Test
+    void padsARaggedLastRowWithoutALineBreak() throws IOException {
+        try (WhonetFileReader reader = WhonetFileReader.open(stream("SPEC_NUM,ORGANISM,WARD\nS-1,eco,MED\nS-2".getBytes(StandardCharsets.UTF_8)), null)) {
+            assertArrayEquals(new String[]{"S-1", "eco", "MED"}, reader.nextRow());
+            assertArrayEquals(new String[]{"S-2", "", ""}, reader.nextRow());
+            assertNull(reader.nextRow());
+            assertEquals(2, reader.getRowNumber());
+        }
+    }
+
+    private static List<String[]> rows(String content) throws IOException {
+        return rows(WhonetFileReader.open(stream(content.getBytes(StandardCharsets.UTF_8)), null));
+    }
+
+    private static List<String[]> rows(WhonetFileReader reader) throws IOException {
+        try (reader) {
+            List<String[]> rows = new ArrayList<>();
+            String[] row;
+            while ((row = reader.nextRow()) != null) {
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+
+    private static ByteArrayInputStream stream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes);
+    }
+}
@@ -0,0 +1,45 @@
+package com.intellisoft.findams.reference;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class IcdCodeIndexTest {
+
+    private static final String GASTROINTESTINAL = "Gastrointestinal Infections";
+    private static final String URINARY = "Urinary Tract Infection";
+
+    private final IcdCodeIndex index = IcdCodeIndex.builder()
+            .add("A00.0", "Cholera due to Vibrio cholera 01, Biovar cholerae", GASTROINTESTINAL)
+            .add("A00.1", "Cholera due to Vibrio cholerae 01, biovar eltor", GASTROINTESTINAL)
+            .add("A00.9", "Cholera , Unspecified", GASTROINTESTINAL)
+            .add("N30.0", "Acute cystitis", URINARY)
+            .add("N39.0", "Urinary tract infection, site not specified", URINARY)
+            .add("N34.1", "Nonspecific urethritis", "Other")
+            .build();
+
+    @Test
+    void resolvesCodesByPrefix() {
+        assertEquals(GASTROINTESTINAL, index.categorise("A00.1"));
+        assertEquals(GASTROINTESTINAL, index.categorise("a001"));
+        // More specific than anything listed resolves to the nearest listed ancestor
+        assertEquals(GASTROINTESTINAL, index.categorise("A00.01"));
+        // A category resolves only when every listed sub-code agrees
+        assertEquals(GASTROINTESTINAL, index.categorise("A00"));
+        assertNull(index.categorise("N3"));
+        assertEquals("Other", index.categorise("N34"));
+        assertEquals(URINARY, index.categorise("N39"));
+        assertNull(index.categorise("B99.9"));
+    }
+
+    @Test
+    void resolvesDescriptionsWithSmallWordingDifferences() {
+        assertEquals(GASTROINTESTINAL, index.categorise("Cholera, unspecified"));
+        assertEquals(URINARY, index.categorise("  ACUTE   cystitis "));
+        assertEquals(URINARY, index.categorise("N30 - Acute cystitis"));
+        assertEquals(URINARY, index.categorise("N30.0 Acute cystitis"));
+        assertNull(index.categorise("Malaria"));
+        assertNull(index.categorise(null));
+    }
+}
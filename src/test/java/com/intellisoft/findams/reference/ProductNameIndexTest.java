@@ -0,0 +1,147 @@
+package com.intellisoft.findams.reference;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProductNameIndexTest {
+
+    private static ProductNameIndex<Double> dddIndex;
+    private static List<String> catalogueNames;
+
+    @BeforeAll
+    static void loadCatalogue() throws IOException {
+        Map<String, Double> dddByName = new LinkedHashMap<>();
+        for (JsonNode entry : new ObjectMapper().readTree(Paths.get("tests/ddd.json").toFile())) {
+            dddByName.putIfAbsent(entry.path("Name").asText(), entry.path("DDD").asDouble());
+        }
+        dddIndex = ProductNameIndex.of(dddByName);
+        catalogueNames = new ArrayList<>(dddByName.keySet());
+    }
+
+    @Test
+    void normalizesStrengthsAndDosageForms() {
+        assertEquals("amoxicillin and enzyme inhibitor", ProductNameIndex.normalize("Amoxicillin/Clavulanic Acid 625mg Tabs"));
+        assertEquals("sulfamethoxazole and trimethoprim", ProductNameIndex.normalize("Sulfamethoxazole + Trimethoprim 480mg"));
+        assertEquals("tazobactam", ProductNameIndex.normalize("Tazobactam 500mg"));
+        assertEquals("ceftriaxone", ProductNameIndex.normalize("CEFTRIAXONE 1g Injection (Vial)"));
+        assertEquals("cefalexin", ProductNameIndex.normalize("Céfalexin 250mg/5ml susp."));
+    }
+
+    @Test
+    void matchesFreeTextProductNames() {
+        ProductNameIndex.Match<Double> exact = dddIndex.find("doxycycline");
+        assertEquals("Doxycycline", exact.name());
+        assertEquals(1.0, exact.confidence());
+
+        ProductNameIndex.Match<Double> withStrength = dddIndex.find("Doxycycline 100mg capsules");
+        assertEquals("Doxycycline", withStrength.name());
+        assertEquals(0.1, withStrength.value());
+
+        ProductNameIndex.Match<Double> contained = dddIndex.find("Ciprofloxacin hydrochloride 500mg");
+        assertEquals("Ciprofloxacin", contained.name());
+        assertTrue(contained.confidence() >= ProductNameIndex.CONTAINMENT_CONFIDENCE);
+
+        ProductNameIndex.Match<Double> misspelt = dddIndex.find("Ceftriaxon");
+        assertEquals("Ceftriaxone", misspelt.name());
+        assertTrue(misspelt.confidence() > 0.75, () -> "confidence " + misspelt.confidence());
+    }
+
+    @Test
+    void matchesCombinationProductsAsAWhole() {
+        ProductNameIndex.Match<Double> cotrimoxazole = dddIndex.find("Sulfamethoxazole/Trimethoprim 480mg");
+        assertEquals("Sulfamethoxazole and trimethoprim", cotrimoxazole.name());
+        assertEquals(1.0, cotrimoxazole.confidence());
+        assertEquals("Sulfamethoxazole and trimethoprim", dddIndex.find("Sulfamethoxazole Trimethoprim").name());
+        assertEquals("Sulfadiazine and trimethoprim", dddIndex.find("Trimethoprim/Sulfadiazine").name());
+        assertEquals("Amoxicillin and enzyme inhibitor", dddIndex.find("Amoxicillin/Clavulanic Acid 625mg").name());
+        assertEquals("Piperacillin and enzyme inhibitor", dddIndex.find("Piperacillin/Tazobactam 4.5g inj").name());
+        assertEquals("Amoxicillin and enzyme inhibitor", dddIndex.find("Amoxicillin + Clavulanate Potassium 1.2g").name());
+    }
+
+    @Test
+    void doesNotResolveACombinationToOneOfItsIngredients() {
+        ProductNameIndex.Match<Double> match = dddIndex.find("Ampicillin/Cloxacillin");
+        assertTrue(match.confidence() < 0.75, () -> match.name() + " with confidence " + match.confidence());
+        assertTrue(dddIndex.find("Amoxicillin/Flucloxacillin 500mg").confidence() < 0.75);
+    }
+
+    @Test
+    void reportsLowConfidenceForUnrelatedNames() {
+        assertTrue(dddIndex.find("Ibuprofen 400mg").confidence() < 0.5);
+        assertFalse(dddIndex.find("500mg tablets").isFound());
+        assertFalse(dddIndex.find(null).isFound());
+    }
+
+    @Test
+    void findsEveryCatalogueNameWhateverItsCaseAndStrength() {
+        for (String prescription : prescriptions(catalogueNames.size() * 5)) {
+            assertTrue(dddIndex.find(prescription).isFound(), prescription);
+        }
+    }
+
+    @Tag("perf")
+    @Test
+    void staysCheapOverAHundredThousandPrescriptionSync() {
+        List<String> prescriptions = prescriptions(100_000);
+
+        // Warm up on a fresh index, then time cold and memoized lookups separately
+        ProductNameIndex<Double> index = ProductNameIndex.of(toCatalogue());
+        for (String prescription : prescriptions.subList(0, 20_000)) {
+            index.find(prescription);
+        }
+
+        index = ProductNameIndex.of(toCatalogue());
+        long start = System.nanoTime();
+        long found = 0;
+        for (String prescription : prescriptions) {
+            if (index.find(prescription).isFound()) {
+                found++;
+            }
+        }
+        double nanosPerLookup = (System.nanoTime() - start) / (double) prescriptions.size();
+
+        long warmStart = System.nanoTime();
+        for (String prescription : prescriptions) {
+            index.find(prescription);
+        }
+        double warmNanosPerLookup = (System.nanoTime() - warmStart) / (double) prescriptions.size();
+
+        assertEquals(prescriptions.size(), found);
+        // Generous bounds so the test holds on shared CI runners
+        assertTrue(nanosPerLookup < 20_000, () -> "cold lookups: " + nanosPerLookup + " ns");
+        assertTrue(warmNanosPerLookup < 2_000, () -> "memoized lookups: " + warmNanosPerLookup + " ns");
+    }
+
+    // A sync sees a few hundred distinct spellings; vary strengths and case so a share of lookups is cold
+    private static List<String> prescriptions(int count) {
+        List<String> prescriptions = new ArrayList<>(count);
+        String[] forms = {"", " 250mg", " 500mg Tabs", " 1g Injection", " 125mg/5ml Susp"};
+        for (int i = 0; i < count; i++) {
+            String name = catalogueNames.get(i % catalogueNames.size());
+            prescriptions.add((i % 2 == 0 ? name.toUpperCase() : name) + forms[i % forms.length]);
+        }
+        return prescriptions;
+    }
+
+    private static Map<String, Double> toCatalogue() {
+        Map<String, Double> catalogue = new LinkedHashMap<>();
+        for (String name : catalogueNames) {
+            catalogue.put(name, dddIndex.find(name).value());
+        }
+        return catalogue;
+    }
+}
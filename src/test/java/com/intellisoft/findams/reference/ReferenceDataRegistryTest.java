@@ -0,0 +1,36 @@
+package com.intellisoft.findams.reference;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReferenceDataRegistryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keepsTheBundledProductNamesWhenTheDataStoreCopyOnlyHasDrugCodes() throws Exception {
+        Files.writeString(directory.resolve("aware.json"), "[{\"drug_code\":\"MEM_ND10\",\"aware_classification\":\"Access\"}]");
+        Files.writeString(directory.resolve("amu_aware.json"), "[{\"name\":\"Amoxicillin\",\"aware_classification\":\"Access\"}]");
+        Files.createDirectories(directory.resolve("datastore"));
+        Files.writeString(directory.resolve("datastore").resolve(ReferenceDataRegistry.DATASTORE_AWARE_FILE), "[{\"drug_code\":\"MEM_ND10\",\"aware_classification\":\"Watch\"}]");
+
+        ReferenceDataRegistry registry = new ReferenceDataRegistry(new ObjectMapper());
+        ReflectionTestUtils.setField(registry, "referenceDataPath", directory.toString());
+        ReflectionTestUtils.setField(registry, "cachePath", directory.resolve("datastore").toString());
+        ReflectionTestUtils.setField(registry, "minMatchConfidence", 0.75);
+        assertTrue(registry.reload());
+
+        assertEquals("Watch", registry.awareClassificationForDrugCode("MEM_ND10"));
+        assertEquals("Access", registry.awareClassificationForProduct("Amoxicillin 500mg capsules"));
+        assertEquals("dhis2-datastore, bundled amu_aware.json", registry.get().describe().get("awareSource"));
+    }
+}
@@ -0,0 +1,56 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class FileHashIndexTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void hashesLargeFilesInBuffers() throws Exception {
+        byte[] content = new byte[1_000_000];
+        new Random(7).nextBytes(content);
+        File file = Files.write(directory.resolve("export.txt"), content).toFile();
+
+        String expected = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        assertEquals(expected, FileHashIndex.sha256(file));
+
+        content[content.length - 1]++;
+        assertNotEquals(expected, FileHashIndex.sha256(Files.write(directory.resolve("changed.txt"), content).toFile()));
+    }
+
+    @Test
+    void remembersImportsAcrossRestarts() throws Exception {
+        FileHashIndex index = open();
+        index.record("abc", "export.txt", "batch-1");
+        index.close();
+
+        FileHashIndex restarted = open();
+        assertEquals("export.txt", restarted.find("abc").fileName());
+        assertEquals("batch-1", restarted.find("abc").batchNo());
+        assertNull(restarted.find("def"));
+        restarted.close();
+    }
+
+    private FileHashIndex open() {
+        FileHashIndex index = new FileHashIndex(new ObjectMapper());
+        ReflectionTestUtils.setField(index, "indexPath", directory.resolve("journal/file-hashes.jsonl").toString());
+        index.initialize();
+        return index;
+    }
+}
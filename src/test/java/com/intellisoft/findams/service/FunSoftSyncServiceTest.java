@@ -0,0 +1,129 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FunSoftSyncServiceTest {
+
+    private final EventProgramService eventProgramService = mock(EventProgramService.class);
+    private final List<String> fetched = new CopyOnWriteArrayList<>();
+    private final Set<String> failing = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void setUp() {
+        when(eventProgramService.fetchFromFunSoft(anyString(), anyString())).thenAnswer(invocation -> {
+            String startDate = invocation.getArgument(0);
+            String endDate = invocation.getArgument(1);
+            return Mono.defer(() -> {
+                fetched.add(startDate + ".." + endDate);
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                Mono<Long> result = failing.contains(startDate) ? Mono.error(new IllegalStateException("FunSoft timed out")) : Mono.just(3L);
+                return result.delayElement(Duration.ofMillis(10)).doOnSuccess(patients -> inFlight.decrementAndGet()).doOnError(error -> inFlight.decrementAndGet());
+            });
+        });
+    }
+
+    @Test
+    void splitsTheRangeIntoWindowsFetchedWithBoundedConcurrency() {
+        FunSoftSyncService service = open(2);
+
+        assertEquals(10, service.sync("2023-01-01", "2023-01-10").block());
+
+        assertEquals(10, fetched.size());
+        assertTrue(fetched.contains("2023-01-10..2023-01-10"));
+        assertEquals(2, maxInFlight.get());
+    }
+
+    @Test
+    void repeatsOnlyTheWindowsThatFailedAfterARestart() {
+        failing.add("2023-01-04");
+        failing.add("2023-01-07");
+        assertEquals(8, open(3).sync("2023-01-01", "2023-01-10").block());
+
+        failing.clear();
+        fetched.clear();
+        FunSoftSyncService restarted = open(3);
+        assertEquals(2, restarted.sync("2023-01-01", "2023-01-10").block());
+        assertEquals(Set.of("2023-01-04..2023-01-04", "2023-01-07..2023-01-07"), Set.copyOf(fetched));
+
+        // Everything up to the last window has folded into the checkpoint
+        fetched.clear();
+        assertEquals(1, open(3).sync("2023-01-01", "2023-01-11").block());
+        assertEquals(List.of("2023-01-11..2023-01-11"), fetched);
+    }
+
+    @Test
+    void resumesFromAFailedWindowWhenTheNextRunStartsAfterIt() {
+        failing.add("2023-01-04");
+        assertEquals(9, open(3).sync("2023-01-01", "2023-01-10").block());
+
+        // The scheduler starts from the latest event posted, which came from a window after the failed one
+        failing.clear();
+        fetched.clear();
+        assertEquals(2, open(3).sync("2023-01-09", "2023-01-11").block());
+        assertEquals(Set.of("2023-01-04..2023-01-04", "2023-01-11..2023-01-11"), Set.copyOf(fetched));
+
+        fetched.clear();
+        assertEquals(1, open(3).sync("2023-01-11", "2023-01-12").block());
+        assertEquals(List.of("2023-01-12..2023-01-12"), fetched);
+    }
+
+    @Test
+    void keepsMultiDayWindowsAlignedAndNeverCheckpointsToday() {
+        FunSoftSyncService service = open(2);
+        ReflectionTestUtils.setField(service, "windowDays", 7);
+
+        assertEquals(3, service.sync("2023-01-01", "2023-01-16").block());
+        assertTrue(fetched.contains("2023-01-15..2023-01-16"));
+
+        // The clock is at 2023-01-16, so the window reaching it is fetched again
+        assertEquals(List.of(new FunSoftSyncService.Window(LocalDate.parse("2023-01-15"), LocalDate.parse("2023-01-16"))), service.pendingWindows(LocalDate.parse("2023-01-01"), LocalDate.parse("2023-01-16")));
+    }
+
+    @Test
+    void takesTheRunOnlyWhenSubscribed() {
+        FunSoftSyncService service = open(2);
+
+        // Built but never subscribed, as when a scheduled run is dropped
+        service.sync("2023-01-01", "2023-01-02");
+
+        assertEquals(2, service.sync("2023-01-01", "2023-01-02").block());
+        assertEquals(List.of("2023-01-01..2023-01-01", "2023-01-02..2023-01-02"), fetched.stream().sorted().toList());
+    }
+
+    private FunSoftSyncService open(int concurrency) {
+        FunSoftSyncService service = new FunSoftSyncService(eventProgramService, new ObjectMapper());
+        ReflectionTestUtils.setField(service, "windowDays", 1);
+        ReflectionTestUtils.setField(service, "concurrency", concurrency);
+        ReflectionTestUtils.setField(service, "checkpointPath", directory.resolve("journal/funsoft-sync.json").toString());
+        ReflectionTestUtils.setField(service, "clock", Clock.fixed(LocalDate.parse("2023-01-16").atStartOfDay().toInstant(ZoneOffset.UTC), ZoneOffset.UTC));
+        service.initialize();
+        return service;
+    }
+}
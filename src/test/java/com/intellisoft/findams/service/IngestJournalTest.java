@@ -0,0 +1,127 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestJournalTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void restoresTheLatestStateOfEveryFileAfterARestart() throws Exception {
+        File posted = Files.writeString(directory.resolve("posted.txt"), "SPEC_NUM\n1\n").toFile();
+        File archived = Files.writeString(directory.resolve("archived.txt"), "SPEC_NUM\n2\n").toFile();
+
+        IngestJournal journal = open();
+        journal.discovered(posted);
+        journal.parsed(posted, 1);
+        journal.posted(posted, "batch-1");
+        journal.discovered(archived);
+        journal.posted(archived, "batch-2");
+        journal.archived(archived);
+        journal.close();
+        // A crash in the middle of writing leaves an incomplete last line
+        Files.writeString(journalPath(), "{\"path\":\"", StandardOpenOption.APPEND);
+
+        IngestJournal restarted = open();
+        assertEquals(IngestJournal.State.POSTED, restarted.get(posted).state());
+        assertEquals("batch-1", restarted.get(posted).detail());
+        assertTrue(restarted.isPostedButNotArchived(posted));
+        // Archived files are done with, so they are dropped
+        assertNull(restarted.get(archived));
+        assertFalse(restarted.isPostedButNotArchived(archived));
+        // Compacted to one line per file
+        assertEquals(1, Files.readAllLines(journalPath()).size());
+        restarted.close();
+    }
+
+    @Test
+    void treatsAChangedFileUnderTheSameNameAsNew() throws Exception {
+        File file = Files.writeString(directory.resolve("lab.txt"), "SPEC_NUM\n1\n").toFile();
+        IngestJournal journal = open();
+        journal.discovered(file);
+        journal.posted(file, "batch-1");
+
+        Files.writeString(file.toPath(), "SPEC_NUM\n1\n2\n");
+
+        assertFalse(journal.isPostedButNotArchived(file));
+        assertNull(journal.get(directory.resolve("other.txt").toFile()));
+        journal.close();
+    }
+
+    @Test
+    void countsFailedAttemptsUntilTheFileChanges() throws Exception {
+        File file = Files.writeString(directory.resolve("lab.txt"), "SPEC_NUM\n1\n").toFile();
+        IngestJournal journal = open();
+        for (int i = 0; i < 2; i++) {
+            journal.discovered(file);
+            journal.parsed(file, 1);
+            journal.failed(file, "1 records were rejected by DHIS2");
+        }
+        journal.close();
+
+        IngestJournal restarted = open();
+        assertEquals(2, restarted.attempts(file));
+        restarted.discovered(file);
+        assertEquals(2, restarted.attempts(file));
+
+        Files.writeString(file.toPath(), "SPEC_NUM\n1\n2\n");
+        assertEquals(0, restarted.attempts(file));
+        restarted.discovered(file);
+        restarted.failed(file, "Read timed out");
+        assertEquals(1, restarted.attempts(file));
+        restarted.close();
+    }
+
+    @Test
+    void keepsEveryLineWhenWorkersWriteConcurrently() throws Exception {
+        IngestJournal journal = open();
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            File file = directory.resolve(i + ".txt").toFile();
+            writes.add(workers.submit(() -> {
+                journal.discovered(file);
+                journal.parsed(file, 10);
+                journal.failed(file, "Read timed out");
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get();
+        }
+        workers.shutdown();
+        journal.close();
+
+        assertEquals(600, Files.readAllLines(journalPath()).size());
+        assertEquals(IngestJournal.State.FAILED, open().get(directory.resolve("7.txt").toFile()).state());
+    }
+
+    private IngestJournal open() {
+        IngestJournal journal = new IngestJournal(new ObjectMapper());
+        ReflectionTestUtils.setField(journal, "journalPath", journalPath().toString());
+        journal.initialize();
+        return journal;
+    }
+
+    private Path journalPath() {
+        return directory.resolve("journal/ingest-journal.jsonl");
+    }
+}
@@ -0,0 +1,57 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonPayloadWriterTest {
+
+    // The application mapper may be configured to indent; outbound payloads must never be
+    private final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private final JsonPayloadWriter writer = new JsonPayloadWriter(objectMapper);
+
+    @Test
+    void streamsTheSameJsonAsOneShotSerialization() throws Exception {
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            events.add(Map.of("program", "el15zrnA8FH", "orgUnit", "p3FIxnPMytB", "status", "COMPLETED",
+                    "dataValues", List.of(Map.of("dataElement", "y1z4rBNFpb6", "value", i))));
+        }
+
+        List<DataBuffer> buffers = writer.writeArray("events", events, DefaultDataBufferFactory.sharedInstance).collectList().block();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (DataBuffer buffer : buffers) {
+            // Whole elements are packed into each buffer until it reaches the target size
+            assertTrue(buffer.readableByteCount() < JsonPayloadWriter.BUFFER_SIZE * 2, () -> "buffer of " + buffer.readableByteCount() + " bytes");
+            byte[] bytes = new byte[buffer.readableByteCount()];
+            buffer.read(bytes);
+            body.write(bytes);
+            DataBufferUtils.release(buffer);
+        }
+
+        assertTrue(buffers.size() > 1, () -> buffers.size() + " buffers");
+        String expected = objectMapper.copy().disable(SerializationFeature.INDENT_OUTPUT).writeValueAsString(Map.of("events", events));
+        assertEquals(expected, body.toString());
+    }
+
+    @Test
+    void writesEmptyArrays() {
+        List<DataBuffer> buffers = writer.writeArray("trackedEntityInstances", List.of(), DefaultDataBufferFactory.sharedInstance).collectList().block();
+
+        assertEquals(1, buffers.size());
+        assertEquals("{\"trackedEntityInstances\":[]}", buffers.get(0).toString(StandardCharsets.UTF_8));
+    }
+}
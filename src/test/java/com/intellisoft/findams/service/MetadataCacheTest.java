@@ -0,0 +1,158 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.mapping.OptionSetIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class MetadataCacheTest {
+
+    @TempDir
+    Path directory;
+
+    private final Instant start = Instant.parse("2023-06-01T08:00:00Z");
+    private final AtomicInteger loads = new AtomicInteger();
+    private MetadataCache cache;
+
+    @BeforeEach
+    void setUp() {
+        cache = newCache();
+        at(Duration.ZERO);
+    }
+
+    @Test
+    void makesOneRequestForTenThousandCallersWithinTheTtl() {
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals("v1", cache.get("amuProgram", this::load).block());
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void concurrentCallersShareTheRequestInFlight() {
+        Sinks.One<String> response = Sinks.one();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            cache.get("optionSets", () -> {
+                loads.incrementAndGet();
+                return response.asMono();
+            }).subscribe(values::add);
+        }
+        response.tryEmitValue("shared");
+
+        assertEquals(1, loads.get());
+        assertEquals(100, values.size());
+        assertEquals("shared", values.get(99));
+    }
+
+    @Test
+    void servesTheStaleValueWhileRefreshingAndKeepsItIfTheRefreshFails() {
+        cache.get("amcProgram", this::load).block();
+
+        at(Duration.ofMinutes(6));
+        Sinks.One<String> refresh = Sinks.one();
+        assertEquals("v1", cache.get("amcProgram", refresh::asMono).block());
+        assertEquals("v1", cache.get("amcProgram", this::load).block());
+        assertEquals(1, loads.get());
+
+        refresh.tryEmitError(new IllegalStateException("DHIS2 down"));
+        Sinks.One<String> retry = Sinks.one();
+        assertEquals("v1", cache.get("amcProgram", retry::asMono).block());
+
+        retry.tryEmitValue("v2");
+        assertEquals("v2", cache.get("amcProgram", this::load).block());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void waitsForTheRefreshOnceTheValueIsTooStale() {
+        cache.get("amuProgram", this::load).block();
+
+        at(Duration.ofHours(2));
+        assertEquals("v2", cache.get("amuProgram", this::load).block());
+
+        at(Duration.ofHours(4));
+        assertThrows(IllegalStateException.class, () -> cache.get("amuProgram", () -> Mono.<String>error(new IllegalStateException("DHIS2 down"))).block());
+    }
+
+    @Test
+    void invalidationMakesTheNextCallerFetchAgain() {
+        cache.get("amuProgram", this::load).block();
+        cache.get("optionSets", this::load).block();
+
+        assertEquals(1, cache.invalidate("amuProgram"));
+        assertEquals("v3", cache.get("amuProgram", this::load).block());
+        assertEquals(2, cache.invalidate(null));
+        assertEquals("v4", cache.get("optionSets", this::load).block());
+    }
+
+    @Test
+    void startsFromTheSnapshotOfThePreviousRunAndRevalidatesIt() throws Exception {
+        ReflectionTestUtils.setField(cache, "snapshotPath", directory.toString());
+        OptionSetIndex optionSets = OptionSetIndex.builder().option("Sex", "M", "Male").option("Sex", "F", "Female").build();
+        cache.get(MetadataCache.OPTION_SETS, () -> Mono.just(optionSets)).block();
+        cache.get(MetadataCache.AMU_PROGRAM, () -> Mono.just("{\"programs\":[]}")).block();
+        awaitFile(directory.resolve("optionSets.json.gz"));
+        awaitFile(directory.resolve("amuProgram.json.gz"));
+
+        MetadataCache restarted = newCache();
+        ReflectionTestUtils.setField(restarted, "snapshotPath", directory.toString());
+        ReflectionTestUtils.setField(restarted, "clock", Clock.fixed(start.plus(Duration.ofMinutes(1)), ZoneOffset.UTC));
+        restarted.loadSnapshots();
+
+        // DHIS2 does not answer, yet the snapshot is served at once while a refresh is in flight
+        OptionSetIndex restored = restarted.get(MetadataCache.OPTION_SETS, () -> {
+            loads.incrementAndGet();
+            return Mono.<OptionSetIndex>never();
+        }).block(Duration.ofSeconds(1));
+        assertEquals("F", restored.findCode("Sex", "Female"));
+        assertEquals("{\"programs\":[]}", restarted.<String>get(MetadataCache.AMU_PROGRAM, Mono::never).block(Duration.ofSeconds(1)));
+        assertEquals(1, loads.get());
+
+        restarted.invalidate(MetadataCache.OPTION_SETS);
+        assertFalse(Files.exists(directory.resolve("optionSets.json.gz")));
+    }
+
+    private static void awaitFile(Path path) throws InterruptedException {
+        for (int i = 0; i < 100 && !Files.exists(path); i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(Files.exists(path), () -> path + " was not written");
+    }
+
+    private MetadataCache newCache() {
+        MetadataCache metadataCache = new MetadataCache(mock(HttpClientService.class), new ObjectMapper());
+        ReflectionTestUtils.setField(metadataCache, "ttlSeconds", 300L);
+        ReflectionTestUtils.setField(metadataCache, "maxStaleSeconds", 3600L);
+        ReflectionTestUtils.setField(metadataCache, "snapshotPath", "");
+        return metadataCache;
+    }
+
+    private Mono<String> load() {
+        return Mono.fromSupplier(() -> "v" + loads.incrementAndGet());
+    }
+
+    private void at(Duration elapsed) {
+        ReflectionTestUtils.setField(cache, "clock", Clock.fixed(start.plus(elapsed), ZoneOffset.UTC));
+    }
+}
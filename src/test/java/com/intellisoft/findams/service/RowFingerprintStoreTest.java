@@ -0,0 +1,216 @@
+package com.intellisoft.findams.service;
+
+import com.intellisoft.findams.mapping.WhonetRowFingerprint;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RowFingerprintStoreTest {
+
+    private static final String[] HEADER = {"LABORATORY", "PATIENT_ID", "SPEC_NUM", "SPEC_DATE", "ORGANISM", "AMP_ND10"};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void sendsOnlyNewAndChangedRowsOfACumulativeExport() throws Exception {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        List<String[]> january = rows(0, 1_000);
+
+        RowFingerprintStore store = open();
+        assertEquals(1_000, send(store, fingerprint, january));
+        store.close();
+
+        // February repeats January, adds 100 isolates and corrects one result
+        List<String[]> february = rows(0, 1_100);
+        february.get(10)[5] = "R";
+
+        RowFingerprintStore restarted = open();
+        RowFingerprintStore.Delta delta = restarted.begin(true);
+        int sent = 0;
+        for (String[] row : february) {
+            if (delta.isNewOrChanged(delta.rowKey(fingerprint.key(row)), fingerprint.content(row))) {
+                sent++;
+            }
+        }
+        assertEquals(101, sent);
+        assertEquals(999, delta.getUnchangedCount());
+        restarted.commit(delta);
+        assertEquals(1_100, restarted.size());
+
+        // Each row is sent once more only if it changes again
+        assertEquals(0, send(restarted, fingerprint, february));
+        restarted.close();
+    }
+
+    @Test
+    void sendsEveryRowWhenNotFiltering() throws Exception {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        RowFingerprintStore store = open();
+        send(store, fingerprint, rows(0, 10));
+
+        RowFingerprintStore.Delta delta = store.begin(false);
+        for (String[] row : rows(0, 10)) {
+            assertTrue(delta.isNewOrChanged(delta.rowKey(fingerprint.key(row)), fingerprint.content(row)));
+        }
+        store.close();
+    }
+
+    @Test
+    void givesAChangedRowTheUidItWasFirstSentWith() throws Exception {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        List<String[]> january = rows(0, 20);
+        january.add(january.get(5).clone());
+
+        RowFingerprintStore store = open();
+        List<String> sentInJanuary = uids(store, fingerprint, january);
+        assertEquals(21, sentInJanuary.size());
+        assertEquals(21, new HashSet<>(sentInJanuary).size());
+        assertTrue(sentInJanuary.stream().allMatch(uid -> uid.matches("[a-zA-Z][a-zA-Z0-9]{10}")));
+        store.close();
+
+        // After a restart, the corrected row and the repeat of row 5 are sent as updates of what January created
+        List<String[]> february = rows(0, 20);
+        february.add(february.get(5).clone());
+        february.get(12)[5] = "R";
+        february.get(20)[5] = "I";
+        RowFingerprintStore restarted = open();
+        assertEquals(List.of(sentInJanuary.get(12), sentInJanuary.get(20)), uids(restarted, fingerprint, february));
+        restarted.close();
+    }
+
+    @Test
+    void keysIgnoreCaseAndSurroundingSpacesButContentDoesNot() {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        String[] row = {"KNH", "P1", "S-100", "01/02/2023", "eco", "S"};
+        String[] reformatted = {"knh", " P1", "s-100 ", "01/02/2023", "ECO", "S"};
+
+        assertEquals(fingerprint.key(row), fingerprint.key(reformatted));
+        assertNotEquals(fingerprint.content(row), fingerprint.content(reformatted));
+        assertTrue(fingerprint.isUsable());
+        assertFalse(new WhonetRowFingerprint(new String[]{"PATIENT_ID", "ORGANISM"}).isUsable());
+    }
+
+    @Test
+    void dropsAnIncompleteLastRecordAndCompactsSupersededOnes() throws Exception {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        RowFingerprintStore store = open();
+        List<String[]> rows = rows(0, 100);
+        send(store, fingerprint, rows);
+        for (int version = 0; version < 3; version++) {
+            for (String[] row : rows) {
+                row[5] = "I" + version;
+            }
+            send(store, fingerprint, rows);
+        }
+        store.close();
+        Files.write(storePath(), new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        RowFingerprintStore restarted = open();
+        assertEquals(100, restarted.size());
+        assertEquals(100 * 16, Files.size(storePath()));
+        assertEquals(0, send(restarted, fingerprint, rows));
+        restarted.close();
+    }
+
+    @Test
+    void recordsOnlyTheRowsOfAcceptedChunks() throws Exception {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        List<String[]> rows = rows(0, 30);
+        RowFingerprintStore store = open();
+        RowFingerprintStore.Delta delta = store.begin(true);
+        for (String[] row : rows) {
+            assertTrue(delta.isNewOrChanged(delta.rowKey(fingerprint.key(row)), fingerprint.content(row)));
+        }
+        // The second chunk of ten was rejected
+        store.commit(delta, 0, 10);
+        store.commit(delta, 20, 10);
+        store.close();
+
+        RowFingerprintStore restarted = open();
+        assertEquals(20, restarted.size());
+        RowFingerprintStore.Delta retry = restarted.begin(true);
+        for (int i = 0; i < rows.size(); i++) {
+            String[] row = rows.get(i);
+            assertEquals(i >= 10 && i < 20, retry.isNewOrChanged(retry.rowKey(fingerprint.key(row)), fingerprint.content(row)), "row " + i);
+        }
+        restarted.close();
+    }
+
+    @Test
+    void tellsApartRowsSharingAKeyWithinAFile() throws Exception {
+        WhonetRowFingerprint fingerprint = new WhonetRowFingerprint(HEADER);
+        // The same isolate exported twice with different results
+        List<String[]> rows = List.of(
+                new String[]{"KNH", "P1", "S-1", "01/02/2023", "eco", "S"},
+                new String[]{"KNH", "P1", "S-1", "01/02/2023", "eco", "R"});
+        assertEquals(fingerprint.key(rows.get(0)), fingerprint.key(rows.get(1)));
+
+        RowFingerprintStore store = open();
+        assertEquals(2, send(store, fingerprint, rows));
+        assertEquals(2, store.size());
+        assertEquals(0, send(store, fingerprint, rows));
+        store.close();
+
+        RowFingerprintStore restarted = open();
+        assertEquals(0, send(restarted, fingerprint, rows));
+        restarted.close();
+    }
+
+    private static int send(RowFingerprintStore store, WhonetRowFingerprint fingerprint, List<String[]> rows) {
+        RowFingerprintStore.Delta delta = store.begin(true);
+        int sent = 0;
+        for (String[] row : rows) {
+            if (delta.isNewOrChanged(delta.rowKey(fingerprint.key(row)), fingerprint.content(row))) {
+                sent++;
+            }
+        }
+        store.commit(delta);
+        return sent;
+    }
+
+    // The uids of the rows sent
+    private static List<String> uids(RowFingerprintStore store, WhonetRowFingerprint fingerprint, List<String[]> rows) {
+        RowFingerprintStore.Delta delta = store.begin(true);
+        List<String> uids = new ArrayList<>();
+        for (String[] row : rows) {
+            long key = delta.rowKey(fingerprint.key(row));
+            if (delta.isNewOrChanged(key, fingerprint.content(row))) {
+                uids.add(WhonetRowFingerprint.uid(key));
+            }
+        }
+        store.commit(delta);
+        return uids;
+    }
+
+    private static List<String[]> rows(int from, int to) {
+        List<String[]> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            rows.add(new String[]{"KNH", "P" + (i / 3), "S-" + i, "01/02/2023", i % 2 == 0 ? "eco" : "kpn", "S"});
+        }
+        return rows;
+    }
+
+    private RowFingerprintStore open() {
+        RowFingerprintStore store = new RowFingerprintStore();
+        ReflectionTestUtils.setField(store, "storePath", storePath().toString());
+        store.initialize();
+        return store;
+    }
+
+    private Path storePath() {
+        return directory.resolve("journal/row-fingerprints.bin");
+    }
+}
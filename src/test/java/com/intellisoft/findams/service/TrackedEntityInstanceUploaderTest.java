@@ -0,0 +1,128 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.dto.Attribute;
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import com.intellisoft.findams.dto.IngestJob;
+import com.intellisoft.findams.dto.TrackedEntityInstance;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TrackedEntityInstanceUploaderTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClientService httpClientService = mock(HttpClientService.class);
+
+    @Test
+    void postsChunksWithBoundedConcurrencyAndMergesSummaries() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger requests = new AtomicInteger();
+        when(httpClientService.postTrackedEntityInstances(anyList())).thenAnswer(invocation -> {
+            int size = invocation.<List<?>>getArgument(0).size();
+            boolean fail = requests.incrementAndGet() == 2;
+            return Mono.defer(() -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                return Mono.delay(Duration.ofMillis(20)).then(fail
+                        ? Mono.<String>error(new IllegalStateException("Read timed out"))
+                        : Mono.just("{\"response\":{\"responseType\":\"ImportSummaries\",\"status\":\"SUCCESS\",\"imported\":" + size + ",\"updated\":0,\"ignored\":0,\"deleted\":0,\"importSummaries\":[]}}"));
+            }).doOnTerminate(inFlight::decrementAndGet);
+        });
+
+        IngestJob job = new IngestJob("job", "lab.txt");
+        List<Long> accepted = new CopyOnWriteArrayList<>();
+        FileParseSummaryDto summary = newUploader(100, 2).upload(instances(1_050), job, (offset, size) -> accepted.add(offset)).block(Duration.ofSeconds(10));
+
+        assertEquals(11, summary.getChunks());
+        assertEquals(1, summary.getFailedChunks());
+        assertEquals(950, summary.getImported());
+        assertEquals(100, summary.getIgnored());
+        assertEquals("ERROR", summary.getStatus());
+        assertEquals("ImportSummaries", summary.getResponseType());
+        assertTrue(summary.getConflictValues().get(0).startsWith("Chunk 2 (100 records)"), summary.getConflictValues()::toString);
+        assertTrue(maxInFlight.get() <= 2, () -> "max in flight " + maxInFlight.get());
+        assertEquals(11, job.getChunksPosted());
+        assertEquals(1, job.getFailedChunks());
+        assertEquals(950, job.getImported());
+        assertEquals(1, job.getConflictCount());
+        assertEquals(10, accepted.size());
+        assertFalse(accepted.contains(100L));
+        assertTrue(accepted.contains(1_000L));
+    }
+
+    @Test
+    void mergesConflictsAcrossChunks() {
+        when(httpClientService.postTrackedEntityInstances(anyList())).thenReturn(Mono.just(
+                "{\"response\":{\"responseType\":\"ImportSummaries\",\"status\":\"WARNING\",\"imported\":1,\"ignored\":1,"
+                        + "\"importSummaries\":[{\"status\":\"ERROR\",\"conflicts\":[{\"value\":\"Value 'x' is not a valid option\"}]}]}}"));
+
+        AtomicInteger accepted = new AtomicInteger();
+        FileParseSummaryDto summary = newUploader(2, 1).upload(instances(4), new IngestJob("job", "lab.txt"), (offset, size) -> accepted.incrementAndGet()).block(Duration.ofSeconds(10));
+
+        // Without a summary per record, chunks with ignored records are sent again whole, so they count as failed
+        assertEquals(2, summary.getChunks());
+        assertEquals(2, summary.getFailedChunks());
+        assertEquals(0, accepted.get());
+        assertEquals(2, summary.getImported());
+        assertEquals(2, summary.getIgnored());
+        assertEquals("WARNING", summary.getStatus());
+        assertEquals(2, summary.getConflictValues().size());
+    }
+
+    @Test
+    void failsChunksThatDhis2Rejects() {
+        when(httpClientService.postTrackedEntityInstances(anyList())).thenReturn(Mono.just(
+                "{\"httpStatus\":\"Conflict\",\"status\":\"ERROR\",\"response\":{\"responseType\":\"ImportSummaries\",\"imported\":0,\"ignored\":0}}"));
+
+        AtomicInteger accepted = new AtomicInteger();
+        FileParseSummaryDto summary = newUploader(2, 1).upload(instances(2), new IngestJob("job", "lab.txt"), (offset, size) -> accepted.incrementAndGet()).block(Duration.ofSeconds(10));
+
+        assertEquals("ERROR", summary.getStatus());
+        assertEquals(1, summary.getFailedChunks());
+        assertEquals(0, accepted.get());
+    }
+
+    @Test
+    void acceptsTheRecordsOfAChunkThatDhis2DidNotReject() {
+        // Summaries are matched to records by the uid they reference, whatever their order
+        when(httpClientService.postTrackedEntityInstances(anyList())).thenReturn(Mono.just(
+                "{\"response\":{\"responseType\":\"ImportSummaries\",\"status\":\"WARNING\",\"imported\":3,\"ignored\":1,\"importSummaries\":["
+                        + "{\"status\":\"SUCCESS\",\"reference\":\"uid3\"},{\"status\":\"SUCCESS\",\"reference\":\"uid0\"},"
+                        + "{\"status\":\"ERROR\",\"reference\":\"uid1\",\"conflicts\":[{\"value\":\"Value 'x' is not a valid option\"}]},"
+                        + "{\"status\":\"SUCCESS\",\"reference\":\"uid2\"}]}}"));
+
+        List<String> accepted = new CopyOnWriteArrayList<>();
+        Flux<TrackedEntityInstance> instances = Flux.range(0, 4).map(i -> new TrackedEntityInstance("uid" + i, "JySrDBa5jo9", "p3FIxnPMytB", List.of(), List.of()));
+        FileParseSummaryDto summary = newUploader(4, 1).upload(instances, new IngestJob("job", "lab.txt"), (offset, size) -> accepted.add(offset + "+" + size)).block(Duration.ofSeconds(10));
+
+        assertEquals(0, summary.getFailedChunks());
+        assertEquals(1, summary.getRejectedRecords());
+        assertEquals(List.of("0+1", "2+2"), accepted);
+        assertEquals(List.of("Value 'x' is not a valid option"), summary.getConflictValues());
+    }
+
+    private TrackedEntityInstanceUploader newUploader(int batchSize, int concurrency) {
+        TrackedEntityInstanceUploader uploader = new TrackedEntityInstanceUploader(httpClientService, objectMapper);
+        ReflectionTestUtils.setField(uploader, "batchSize", batchSize);
+        ReflectionTestUtils.setField(uploader, "concurrency", concurrency);
+        return uploader;
+    }
+
+    private static Flux<TrackedEntityInstance> instances(int count) {
+        return Flux.range(0, count).map(i -> new TrackedEntityInstance(null, "JySrDBa5jo9", "p3FIxnPMytB", List.of(), List.of(new Attribute("row", String.valueOf(i)))));
+    }
+}
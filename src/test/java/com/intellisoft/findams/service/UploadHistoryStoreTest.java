@@ -0,0 +1,196 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UploadHistoryStoreTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClientService httpClientService = mock(HttpClientService.class);
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void setUp() {
+        when(httpClientService.createDataStoreEntry(anyString(), anyString())).thenReturn(Mono.just(true));
+        when(httpClientService.saveDataStoreEntry(anyString(), anyString())).thenReturn(Mono.just(true));
+        when(httpClientService.getDataStoreKeys()).thenReturn(Mono.just(List.of()));
+        when(httpClientService.getDataStoreEntry(anyString())).thenReturn(Mono.empty());
+    }
+
+    @Test
+    void writesEachSummaryToItsOwnKeyWithoutReadingTheHistoryBack() throws Exception {
+        UploadHistoryStore store = open();
+        store.record(summary("batch-1", "2023-01-15 10:00:00"));
+        store.record(summary("batch-2", "2023-02-03 09:30:00"));
+        store.record(summary("batch-3", "2023-02-20 16:45:00"));
+
+        verify(httpClientService).createDataStoreEntry(eq("upload-2023-02-batch-3"), anyString());
+        verify(httpClientService, times(3)).saveDataStoreEntry(eq("upload-history-index"), anyString());
+        verify(httpClientService, never()).fetchDataStoreEntry(anyString());
+
+        JsonNode index = objectMapper.readTree(store.indexJson());
+        assertEquals(3, index.path("total").asInt());
+        assertEquals("batch-3", index.path("latestBatchNo").asText());
+        assertEquals(1, index.path("months").path("2023-01").asInt());
+        assertEquals(2, index.path("months").path("2023-02").asInt());
+        store.close();
+    }
+
+    @Test
+    void pagesTheHistoryNewestFirstAfterARestart() throws Exception {
+        UploadHistoryStore store = open();
+        for (int i = 0; i < 45; i++) {
+            store.record(summary("batch-" + i, "2023-03-01 08:00:00"));
+        }
+        store.close();
+        // A crash in the middle of writing leaves an incomplete last line
+        Files.writeString(historyPath(), "{\"batchNo\":", StandardOpenOption.APPEND);
+
+        UploadHistoryStore restarted = open();
+        assertEquals(45, restarted.size());
+
+        UploadHistoryStore.Page first = restarted.page(0, 20);
+        assertEquals(45, first.total());
+        assertEquals("batch-44", first.items().get(0).getBatchNo());
+        assertEquals(20, first.items().size());
+
+        List<FileParseSummaryDto> last = restarted.page(2, 20).items();
+        assertEquals(5, last.size());
+        assertEquals("batch-0", last.get(4).getBatchNo());
+        assertTrue(restarted.page(3, 20).items().isEmpty());
+
+        restarted.record(summary("batch-45", "2023-03-02 08:00:00"));
+        assertEquals("batch-45", restarted.page(0, 1).items().get(0).getBatchNo());
+        assertEquals("batch-44", restarted.page(1, 1).items().get(0).getBatchNo());
+        restarted.close();
+    }
+
+    @Test
+    void sendsSummariesThatCouldNotBePublishedAgain() throws Exception {
+        when(httpClientService.createDataStoreEntry(eq("upload-2023-04-batch-2"), anyString())).thenReturn(Mono.just(false));
+        UploadHistoryStore store = open();
+        store.record(summary("batch-1", "2023-04-01 08:00:00"));
+        store.record(summary("batch-2", "2023-04-02 08:00:00"));
+
+        // Only the shards that were created are counted
+        JsonNode index = objectMapper.readTree(store.indexJson());
+        assertEquals(1, index.path("total").asInt());
+        assertEquals("batch-1", index.path("latestBatchNo").asText());
+        assertEquals(2, store.size());
+        store.close();
+
+        when(httpClientService.createDataStoreEntry(eq("upload-2023-04-batch-2"), anyString())).thenReturn(Mono.just(true));
+        UploadHistoryStore restarted = open();
+        assertEquals(1, objectMapper.readTree(restarted.indexJson()).path("total").asInt());
+        restarted.record(summary("batch-3", "2023-04-03 08:00:00"));
+
+        index = objectMapper.readTree(restarted.indexJson());
+        assertEquals(3, index.path("total").asInt());
+        assertEquals(3, index.path("months").path("2023-04").asInt());
+        assertEquals("batch-3", index.path("latestBatchNo").asText());
+        verify(httpClientService, times(2)).createDataStoreEntry(eq("upload-2023-04-batch-2"), anyString());
+        verify(httpClientService, times(1)).createDataStoreEntry(eq("upload-2023-04-batch-1"), anyString());
+        restarted.close();
+    }
+
+    @Test
+    void seedsAMissingMirrorOnceFromTheLegacyKeyAndTheShards() throws Exception {
+        when(httpClientService.getDataStoreEntry(UploadHistoryStore.LEGACY_HISTORY_KEY)).thenReturn(Mono.just(objectMapper.writeValueAsString(List.of(
+                summary("legacy-1", "2022-11-01 08:00:00"), summary("legacy-2", "2022-12-01 08:00:00")))));
+        when(httpClientService.getDataStoreKeys()).thenReturn(Mono.just(List.of("upload-2022-12-legacy-2", "upload-2023-01-shard-1", "upload-history-index", "other")));
+        when(httpClientService.getDataStoreEntry("upload-2022-12-legacy-2")).thenReturn(Mono.just(objectMapper.writeValueAsString(summary("legacy-2", "2022-12-01 08:00:00"))));
+        when(httpClientService.getDataStoreEntry("upload-2023-01-shard-1")).thenReturn(Mono.just(objectMapper.writeValueAsString(summary("shard-1", "2023-01-05 08:00:00"))));
+
+        UploadHistoryStore store = open();
+        assertEquals(3, store.size());
+        assertEquals(List.of("shard-1", "legacy-2", "legacy-1"), batchNos(store.page(0, 10)));
+        // Only the legacy upload without a key of its own is sent
+        verify(httpClientService).createDataStoreEntry(eq("upload-2022-11-legacy-1"), anyString());
+        verify(httpClientService, never()).createDataStoreEntry(eq("upload-2022-12-legacy-2"), anyString());
+        JsonNode index = objectMapper.readTree(store.indexJson());
+        assertEquals(3, index.path("total").asInt());
+        assertEquals("shard-1", index.path("latestBatchNo").asText());
+        store.close();
+
+        UploadHistoryStore restarted = open();
+        assertEquals(3, restarted.size());
+        verify(httpClientService, times(1)).getDataStoreKeys();
+        restarted.close();
+    }
+
+    @Test
+    void keepsUploadsRecordedBeforeSeedingAfterTheSeededOnes() throws Exception {
+        when(httpClientService.getDataStoreKeys()).thenReturn(Mono.error(new IllegalStateException("Connection refused")));
+        UploadHistoryStore store = open();
+        store.record(summary("batch-1", "2023-05-01 08:00:00"));
+        // Nothing is published until the history was seeded
+        verify(httpClientService, never()).createDataStoreEntry(anyString(), anyString());
+        store.close();
+
+        when(httpClientService.getDataStoreKeys()).thenReturn(Mono.just(List.of("upload-2023-01-shard-1")));
+        when(httpClientService.getDataStoreEntry("upload-2023-01-shard-1")).thenReturn(Mono.just(objectMapper.writeValueAsString(summary("shard-1", "2023-01-05 08:00:00"))));
+        UploadHistoryStore restarted = open();
+
+        assertEquals(List.of("batch-1", "shard-1"), batchNos(restarted.page(0, 10)));
+        verify(httpClientService).createDataStoreEntry(eq("upload-2023-05-batch-1"), anyString());
+        assertEquals(2, objectMapper.readTree(restarted.indexJson()).path("total").asInt());
+        restarted.record(summary("batch-2", "2023-05-02 08:00:00"));
+        assertEquals(List.of("batch-2", "batch-1", "shard-1"), batchNos(restarted.page(0, 10)));
+        restarted.close();
+
+        UploadHistoryStore reopened = open();
+        assertEquals(3, objectMapper.readTree(reopened.indexJson()).path("total").asInt());
+        // At startup and after the upload while DHIS2 was down, then once more on the restart
+        verify(httpClientService, times(3)).getDataStoreKeys();
+        reopened.close();
+    }
+
+    private static List<String> batchNos(UploadHistoryStore.Page page) {
+        return page.items().stream().map(FileParseSummaryDto::getBatchNo).toList();
+    }
+
+    private static FileParseSummaryDto summary(String batchNo, String uploadDate) {
+        FileParseSummaryDto summary = new FileParseSummaryDto();
+        summary.setBatchNo(batchNo);
+        summary.setUploadDate(uploadDate);
+        summary.setFileName(batchNo + ".txt");
+        summary.setImported(10);
+        return summary;
+    }
+
+    private UploadHistoryStore open() {
+        UploadHistoryStore store = new UploadHistoryStore(httpClientService, objectMapper);
+        ReflectionTestUtils.setField(store, "historyPath", historyPath().toString());
+        ReflectionTestUtils.setField(store, "keyPrefix", "upload-");
+        ReflectionTestUtils.setField(store, "indexKey", "upload-history-index");
+        store.initialize();
+        return store;
+    }
+
+    private Path historyPath() {
+        return directory.resolve("journal/upload-history.jsonl");
+    }
+}
@@ -0,0 +1,79 @@
+package com.intellisoft.findams.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+class WhonetDirectoryWatcherTest {
+
+    @TempDir
+    Path directory;
+
+    private final WhonetIngestionExecutor whonetIngestionExecutor = mock(WhonetIngestionExecutor.class);
+    private WhonetDirectoryWatcher watcher;
+
+    @AfterEach
+    void shutdown() throws IOException {
+        watcher.shutdown();
+    }
+
+    @Test
+    void queuesNewFilesOnceTheyStopChanging() throws Exception {
+        watcher = start(300);
+
+        Path file = directory.resolve("lab-a.txt");
+        Files.writeString(file, "SPEC_NUM\tSPEC_DATE\n");
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(100);
+            Files.writeString(file, "1\t01/02/2023 08:00\n", StandardOpenOption.APPEND);
+        }
+        // Still being written to within the stable period
+        verify(whonetIngestionExecutor, never()).offer(any(File.class));
+
+        verify(whonetIngestionExecutor, timeout(5_000)).offer(file.toAbsolutePath().toFile());
+    }
+
+    @Test
+    void ignoresPartialFilesUntilTheyAreRenamed() throws Exception {
+        watcher = start(100);
+
+        Path partial = Files.writeString(directory.resolve("lab-b.txt.part"), "SPEC_NUM\n1\n");
+        Thread.sleep(500);
+        verify(whonetIngestionExecutor, never()).offer(any(File.class));
+
+        Path file = Files.move(partial, directory.resolve("lab-b.txt"), StandardCopyOption.ATOMIC_MOVE);
+        verify(whonetIngestionExecutor, timeout(5_000)).offer(file.toAbsolutePath().toFile());
+    }
+
+    @Test
+    void picksUpFilesWaitingBeforeTheStart() throws Exception {
+        Path file = Files.writeString(directory.resolve("lab-c.txt"), "SPEC_NUM\n1\n");
+
+        watcher = start(100);
+
+        verify(whonetIngestionExecutor, timeout(5_000)).offer(file.toAbsolutePath().toFile());
+    }
+
+    private WhonetDirectoryWatcher start(long stableMillis) {
+        WhonetDirectoryWatcher watcher = new WhonetDirectoryWatcher(whonetIngestionExecutor);
+        ReflectionTestUtils.setField(watcher, "directory", directory.toAbsolutePath().toString());
+        ReflectionTestUtils.setField(watcher, "watchEnabled", true);
+        ReflectionTestUtils.setField(watcher, "stableMillis", stableMillis);
+        watcher.start();
+        return watcher;
+    }
+}
@@ -0,0 +1,288 @@
+package com.intellisoft.findams.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellisoft.findams.dto.FileParseSummaryDto;
+import com.intellisoft.findams.dto.IngestJob;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WhonetIngestionExecutorTest {
+
+    @TempDir
+    Path directory;
+
+    private final MicrobiologyService microbiologyService = mock(MicrobiologyService.class);
+    private final IngestJournal ingestJournal = new IngestJournal(new ObjectMapper());
+    private final FileHashIndex fileHashIndex = new FileHashIndex(new ObjectMapper());
+    private WhonetIngestionExecutor executor;
+
+    @BeforeEach
+    void journal() {
+        ReflectionTestUtils.setField(ingestJournal, "journalPath", directory.resolve("journal/ingest-journal.jsonl").toString());
+        ReflectionTestUtils.setField(fileHashIndex, "indexPath", directory.resolve("journal/file-hashes.jsonl").toString());
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        executor.shutdown();
+        ingestJournal.close();
+        fileHashIndex.close();
+    }
+
+    @Test
+    void processesWaitingFilesOldestFirst() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        List<String> processed = new CopyOnWriteArrayList<>();
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenAnswer(invocation -> {
+            String fileName = invocation.getArgument(1);
+            if (fileName.equals("blocker.txt")) {
+                release.await(5, TimeUnit.SECONDS);
+            }
+            processed.add(fileName);
+            done.countDown();
+            return Mono.just(new FileParseSummaryDto());
+        });
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+
+        // Holds the only worker while the others are queued in any order
+        executor.submit(file("blocker.txt", 0));
+        executor.submit(file("newest.txt", 3_000));
+        executor.submit(file("oldest.txt", 1_000));
+        executor.submit(file("middle.txt", 2_000));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("blocker.txt", "oldest.txt", "middle.txt", "newest.txt"), processed);
+    }
+
+    @Test
+    void boundsConcurrencyAndIsolatesFailures() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(6);
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenAnswer(invocation -> {
+            String fileName = invocation.getArgument(1);
+            return Mono.defer(() -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                return Mono.delay(Duration.ofMillis(50)).then(fileName.startsWith("0")
+                        ? Mono.<FileParseSummaryDto>error(new IllegalStateException("Unreadable file"))
+                        : Mono.just(new FileParseSummaryDto()));
+            }).doOnTerminate(() -> {
+                inFlight.decrementAndGet();
+                done.countDown();
+            });
+        });
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 2);
+        IngestJob[] jobs = new IngestJob[6];
+        for (int i = 0; i < 6; i++) {
+            jobs[i] = executor.submit(file(i + ".txt", i * 1_000L));
+        }
+        // Files already waiting or in progress are not queued again
+        assertSame(jobs[5], executor.submit(directory.resolve("5.txt").toFile()));
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(maxInFlight.get() <= 2, () -> "max in flight " + maxInFlight.get());
+        for (int i = 0; i < 50 && executor.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getPendingCount());
+        assertEquals(IngestJob.Status.FAILED, executor.getJob(jobs[0].getId()).getStatus());
+        assertEquals("Unreadable file", jobs[0].getError());
+        assertEquals(IngestJob.Status.COMPLETED, executor.getJob(jobs[1].getId()).getStatus());
+        assertEquals(IngestJournal.State.FAILED, ingestJournal.get(directory.resolve("0.txt").toFile()).state());
+    }
+
+    @Test
+    void archivesFilesPostedBeforeARestartWithoutPostingThemAgain() throws Exception {
+        File file = file("posted.txt", 0);
+        ingestJournal.discovered(file);
+        ingestJournal.posted(file, "batch-1");
+        when(microbiologyService.archive(file.getAbsolutePath(), null)).thenReturn(true);
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+
+        IngestJob job = executor.submit(file);
+
+        verify(microbiologyService, timeout(5_000)).archive(file.getAbsolutePath(), null);
+        verify(microbiologyService, never()).processFile(anyString(), anyString(), any(IngestJob.class));
+        for (int i = 0; i < 50 && !job.isFinished(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(IngestJob.Status.COMPLETED, job.getStatus());
+    }
+
+    @Test
+    void skipsFilesWithContentImportedBeforeUnlessForced() throws Exception {
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenAnswer(invocation -> {
+            FileParseSummaryDto summary = new FileParseSummaryDto();
+            summary.setBatchNo("batch-1");
+            return Mono.just(summary);
+        });
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+
+        when(microbiologyService.archive(anyString(), any())).thenReturn(true);
+        IngestJob first = awaitFinished(executor.submit(file("export.txt", 0)));
+        assertEquals(IngestJob.Status.COMPLETED, first.getStatus());
+
+        // The same export dropped again under another name
+        File copy = Files.copy(directory.resolve("export.txt"), directory.resolve("export-copy.txt")).toFile();
+        IngestJob second = awaitFinished(executor.submit(copy));
+        assertEquals(IngestJob.Status.SKIPPED, second.getStatus());
+        assertEquals("export.txt", second.getDuplicateOf());
+        assertEquals(first.getSha256(), second.getSha256());
+        verify(microbiologyService).archive(copy.getAbsolutePath(), null);
+
+        IngestJob forced = awaitFinished(executor.submit(copy, true));
+        assertEquals(IngestJob.Status.COMPLETED, forced.getStatus());
+        verify(microbiologyService, times(2)).processFile(anyString(), anyString(), any(IngestJob.class));
+    }
+
+    @Test
+    void leavesFilesWithFailedChunksToBeSentAgain() throws Exception {
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenAnswer(invocation -> {
+            FileParseSummaryDto summary = new FileParseSummaryDto();
+            summary.setChunks(3);
+            summary.setFailedChunks(1);
+            return Mono.just(summary);
+        });
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+
+        IngestJob job = awaitFinished(executor.submit(file("export.txt", 0)));
+
+        assertEquals(IngestJob.Status.FAILED, job.getStatus());
+        assertEquals("1 of 3 chunks failed", job.getError());
+        verify(microbiologyService, never()).archive(anyString(), any());
+    }
+
+    @Test
+    void leavesFilesWithRejectedRecordsUntilTheyAreArchived() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenAnswer(invocation -> {
+            FileParseSummaryDto summary = new FileParseSummaryDto();
+            summary.setChunks(1);
+            summary.setRejectedRecords(2);
+            // The last attempt archives the file with the rejected records left out
+            if (calls.incrementAndGet() == 2) {
+                summary.setBatchNo("batch-1");
+            }
+            return Mono.just(summary);
+        });
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+        File file = file("export.txt", 0);
+
+        IngestJob rejected = awaitFinished(executor.submit(file));
+        IngestJob archived = awaitFinished(executor.submit(file));
+
+        assertEquals(IngestJob.Status.FAILED, rejected.getStatus());
+        assertEquals("2 records were rejected by DHIS2", rejected.getError());
+        assertEquals(IngestJob.Status.COMPLETED, archived.getStatus());
+    }
+
+    @Test
+    void waitsBeforeOfferingAFailedFileAgain() throws Exception {
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenReturn(Mono.error(new IOException("Unterminated quote")));
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+        ReflectionTestUtils.setField(executor, "retryBackoffSeconds", 3_600L);
+        ReflectionTestUtils.setField(executor, "maxRetryBackoffSeconds", 21_600L);
+        File file = file("export.txt", 0);
+
+        assertEquals(IngestJob.Status.FAILED, awaitFinished(executor.offer(file)).getStatus());
+        assertEquals(IngestJournal.State.FAILED, ingestJournal.get(file).state());
+
+        // The scans leave it alone until the backoff has passed, but it can still be queued by hand
+        assertNull(executor.offer(file));
+        assertEquals(IngestJob.Status.FAILED, awaitFinished(executor.submit(file, true)).getStatus());
+        assertNull(executor.offer(file));
+        assertEquals(2, ingestJournal.attempts(file));
+
+        // A corrected file is a new one
+        Files.writeString(file.toPath(), "SPEC_NUM\n1\n2\n");
+        assertEquals(IngestJob.Status.FAILED, awaitFinished(executor.offer(file)).getStatus());
+        verify(microbiologyService, times(3)).processFile(anyString(), anyString(), any(IngestJob.class));
+    }
+
+    @Test
+    void doesNotRecordTheHashOfFailedOrRejectedFiles() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenAnswer(invocation -> {
+            FileParseSummaryDto summary = new FileParseSummaryDto();
+            summary.setChunks(1);
+            if (calls.incrementAndGet() == 1) {
+                summary.setFailedChunks(1);
+            } else {
+                summary.setStatus("ERROR");
+            }
+            return Mono.just(summary);
+        });
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+        File file = file("export.txt", 0);
+
+        IngestJob failed = awaitFinished(executor.submit(file));
+        IngestJob rejected = awaitFinished(executor.submit(file));
+        IngestJob retried = awaitFinished(executor.submit(file));
+
+        assertEquals(IngestJob.Status.FAILED, failed.getStatus());
+        assertEquals(IngestJob.Status.COMPLETED, rejected.getStatus());
+        assertEquals(IngestJob.Status.COMPLETED, retried.getStatus());
+        assertNull(fileHashIndex.find(retried.getSha256()));
+        verify(microbiologyService, times(3)).processFile(anyString(), anyString(), any(IngestJob.class));
+    }
+
+    @Test
+    void failsDuplicatesThatCannotBeArchived() throws Exception {
+        when(microbiologyService.processFile(anyString(), anyString(), any(IngestJob.class))).thenReturn(Mono.just(new FileParseSummaryDto()));
+        when(microbiologyService.archive(anyString(), any())).thenReturn(false);
+        executor = new WhonetIngestionExecutor(microbiologyService, ingestJournal, fileHashIndex, 1);
+
+        awaitFinished(executor.submit(file("export.txt", 0)));
+        File copy = Files.copy(directory.resolve("export.txt"), directory.resolve("export-copy.txt")).toFile();
+        IngestJob duplicate = awaitFinished(executor.submit(copy));
+
+        assertEquals(IngestJob.Status.FAILED, duplicate.getStatus());
+        assertTrue(duplicate.getError().contains("could not be archived"));
+    }
+
+    private static IngestJob awaitFinished(IngestJob job) throws InterruptedException {
+        for (int i = 0; i < 500 && !job.isFinished(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.isFinished(), () -> job.getFileName() + " is " + job.getStatus());
+        // The file is released just after its job finishes
+        Thread.sleep(20);
+        return job;
+    }
+
+    private File file(String name, long lastModified) throws IOException {
+        File file = Files.writeString(directory.resolve(name), "SPEC_NUM\n" + name + "\n").toFile();
+        assertTrue(file.setLastModified(1_700_000_000_000L + lastModified));
+        return file;
+    }
+}